@@ -0,0 +1,105 @@
+package com.hardis.logback.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.hardis.logback.RedisAppender;
+
+/**
+ * Cost of {@link RedisAppender#doAppend} for 1 to 64 logging threads sharing an appender,
+ * while its workers flush to a {@link FakeRedisServer}. The events the queue refuses are
+ * dropped, which is part of what is measured: compare <code>EventsDroppedInQueueing</code>
+ * printed on tear down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+    @Param({ "ringBuffer", "blocking" })
+    public String queueType;
+
+    @Param({ "false", "true" })
+    public boolean serializeOnAppend;
+
+    @Param({ "false", "true" })
+    public boolean eventDriven;
+
+    private FakeRedisServer server;
+    private RedisAppender appender;
+    private LoggingEvent event;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new FakeRedisServer();
+        LoggerContext context = new LoggerContext();
+        appender = new RedisAppender();
+        appender.setContext(context);
+        appender.setHost("127.0.0.1");
+        appender.setPort(server.getPort());
+        appender.setKey("logs");
+        appender.setRegisterMBean(false);
+        appender.setQueueType(queueType);
+        appender.setSerializeOnAppend(serializeOnAppend);
+        appender.setEventDriven(eventDriven);
+        appender.setFlushInterval(10);
+        appender.setQueueSize(50000);
+        appender.setBatchSize(500);
+        appender.start();
+        event = new LoggingEvent("com.example.Orders", context.getLogger("com.example.Orders"), Level.INFO,
+            "order {} shipped to {}", null, new Object[] { 4711, "warehouse-3" });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        appender.stop();
+        System.out.println("\nEventsDroppedInQueueing: " + appender.getEventsDroppedInQueueing() + " of " + appender.getEventCounter());
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64() {
+        appender.doAppend(event);
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.hardis.logback.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for Redis, speaking just enough RESP for the appender: PING, AUTH,
+ * SELECT and QUIT, and RPUSH, whose elements are counted and discarded. Any other command
+ * gets <code>+OK</code>. One thread per connection; replies are flushed once the pending
+ * input is consumed, so that pipelined commands are answered in bulk.
+ */
+public final class FakeRedisServer implements Closeable {
+
+    private static final byte[] PONG = "+PONG\r\n".getBytes();
+    private static final byte[] OK = "+OK\r\n".getBytes();
+
+    private final ServerSocket server;
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final List<Socket> clients = new ArrayList<Socket>();
+    private volatile boolean running = true;
+
+    public FakeRedisServer() throws IOException {
+        server = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "fake-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the number of list elements pushed so far
+     */
+    public long getElements() {
+        return elements.get();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+            clients.clear();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket client = server.accept();
+                client.setTcpNoDelay(true);
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                Thread connection = new Thread(new Runnable() {
+                    public void run() {
+                        serve(client);
+                    }
+                }, "fake-redis-" + client.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), 16 * 1024);
+            byte[] name = new byte[16];
+            while (running) {
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                int first = in.read();
+                if (first < 0) {
+                    return;
+                }
+                if (first != '*') {
+                    throw new IOException("Expected a RESP array, got '" + (char) first + "'");
+                }
+                int args = readInt(in);
+                int nameLength = readBulk(in, name);
+                for (int i = 1; i < args; i++) {
+                    readBulk(in, null);
+                }
+                commands.incrementAndGet();
+                String command = new String(name, 0, Math.min(nameLength, name.length), "US-ASCII").toUpperCase();
+                if (command.equals("RPUSH")) {
+                    long count = elements.addAndGet(args - 2);
+                    out.write(':');
+                    out.write(Long.toString(count).getBytes());
+                    out.write('\r');
+                    out.write('\n');
+                } else if (command.equals("PING")) {
+                    out.write(PONG);
+                } else if (command.equals("QUIT")) {
+                    out.write(OK);
+                    out.flush();
+                    return;
+                } else {
+                    out.write(OK);
+                }
+            }
+        } catch (IOException e) {
+            // client gone or server closed
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+            synchronized (clients) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    /**
+     * Reads a <code>$length\r\n...\r\n</code> bulk string, keeping its first bytes in
+     * <code>into</code> if not null.
+     *
+     * @return the length of the bulk string
+     */
+    private static int readBulk(InputStream in, byte[] into) throws IOException {
+        int marker = in.read();
+        if (marker != '$') {
+            throw new IOException("Expected a RESP bulk string, got '" + (char) marker + "'");
+        }
+        int length = readInt(in);
+        int kept = into == null ? 0 : Math.min(length, into.length);
+        for (int read = 0; read < kept; ) {
+            int n = in.read(into, read, kept - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        skip(in, length - kept + 2);
+        return length;
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int value = 0;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value = value * 10 + (b - '0');
+        }
+        in.read(); // \n
+        return value;
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+}
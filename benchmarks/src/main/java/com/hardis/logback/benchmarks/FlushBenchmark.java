@@ -0,0 +1,100 @@
+package com.hardis.logback.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.hardis.logback.RedisAppender;
+
+/**
+ * End-to-end throughput: each invocation appends {@value #EVENTS} events and waits until the
+ * workers pushed them to a {@link FakeRedisServer} over the loopback, so the score is in
+ * events per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+    static final int EVENTS = 10000;
+
+    @Param({ "false", "true" })
+    public boolean pipelined;
+
+    @Param({ "1", "4" })
+    public int flushWorkers;
+
+    @Param({ "none", "deflate" })
+    public String envelope;
+
+    private FakeRedisServer server;
+    private RedisAppender appender;
+    private LoggingEvent[] events;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new FakeRedisServer();
+        LoggerContext context = new LoggerContext();
+        appender = new RedisAppender();
+        appender.setContext(context);
+        appender.setHost("127.0.0.1");
+        appender.setPort(server.getPort());
+        appender.setKey("logs");
+        appender.setRegisterMBean(false);
+        appender.setQueueSize(EVENTS * 2);
+        appender.setBatchSize(500);
+        appender.setEventDriven(true);
+        appender.setFlushInterval(1);
+        appender.setPipelined(pipelined);
+        appender.setFlushWorkers(flushWorkers);
+        if (!"none".equals(envelope)) {
+            appender.setEnvelope(envelope);
+        }
+        appender.start();
+        events = new LoggingEvent[100];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new LoggingEvent("com.example.Orders", context.getLogger("com.example.Orders" + i % 10), Level.INFO,
+                "order {} shipped to {}", null, new Object[] { i, "warehouse-" + i % 3 });
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        appender.stop();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void flush() {
+        long target = appender.getEventsPushed() + appender.getEventsDroppedInQueueing() + EVENTS;
+        for (int i = 0; i < EVENTS; i++) {
+            appender.doAppend(events[i % events.length]);
+        }
+        while (appender.getEventsPushed() + appender.getEventsDroppedInQueueing() < target) {
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.hardis.logback.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.hardis.logback.AdditionalField;
+import com.hardis.logback.JSONEventLayout;
+
+/**
+ * {@link JSONEventLayout} rendering an event to a String and to UTF-8 bytes, with the optional
+ * parts of an event switched on one at a time. The caller data is computed once in the set
+ * up, so that only its rendering is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean mdc;
+
+    @Param({ "false", "true" })
+    public boolean throwable;
+
+    @Param({ "false", "true" })
+    public boolean locationInfo;
+
+    @Param({ "false", "true" })
+    public boolean additionalFields;
+
+    private JSONEventLayout layout;
+    private LoggingEvent event;
+
+    @Setup
+    public void setUp() {
+        LoggerContext context = new LoggerContext();
+        layout = new JSONEventLayout();
+        layout.setContext(context);
+        layout.setSource("billing");
+        layout.setSourceHost("host-1.example.com");
+        layout.setType("app");
+        layout.setLocationInfo(locationInfo);
+        layout.setProperties(mdc);
+        if (additionalFields) {
+            layout.addAdditionalField(field("environment", "production"));
+            layout.addAdditionalField(field("user", "@{user:-anonymous}"));
+            layout.addAdditionalField(field("request", "@{requestId}"));
+        }
+        layout.start();
+
+        event = new LoggingEvent("com.example.Orders", context.getLogger("com.example.Orders"), Level.WARN,
+            "order {} shipped to \"{}\"", throwable ? failure(3) : null, new Object[] { 4711, "warehouse-3" });
+        event.setThreadName("http-nio-8080-exec-7");
+        if (mdc) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("user", "jdoe");
+            map.put("requestId", "5f2b9c1e-8d4a-4b7e-9a61-0c3e2d1f4a5b");
+            map.put("tenant", "acme");
+            event.setMDCPropertyMap(map);
+        }
+        if (locationInfo) {
+            event.setCallerData(new Throwable().getStackTrace());
+        }
+        event.getFormattedMessage();
+    }
+
+    private static AdditionalField field(String key, String value) {
+        AdditionalField field = new AdditionalField();
+        field.setKey(key);
+        field.setValue(value);
+        return field;
+    }
+
+    private static Exception failure(int depth) {
+        return depth == 0 ? new IllegalStateException("stock exhausted") : new RuntimeException("level " + depth, failure(depth - 1));
+    }
+
+    @Benchmark
+    public String doLayout() {
+        return layout.doLayout(event);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return layout.encode(event);
+    }
+
+}
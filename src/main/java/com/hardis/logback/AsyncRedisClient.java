@@ -0,0 +1,559 @@
+package com.hardis.logback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Sends Redis commands over a single non-blocking connection, without waiting for their
+ * replies: one event loop thread writes the commands as they are queued and reads the
+ * replies, completing each command through its {@link Callback}.
+ * <p>
+ * At most <code>window</code> commands are in flight at once; {@link #send(byte[][], Callback)}
+ * waits for room. A command not answered within <code>commandTimeout</code> breaks the
+ * connection, failing every command in flight, since a reply can't be skipped. The
+ * connection is only opened by {@link #connect()}, never behind the caller's back.
+ */
+final class AsyncRedisClient {
+
+	final static Logger logger = LoggerFactory.getLogger(AsyncRedisClient.class);
+
+    /**
+     * Completes a command. Called on the event loop thread, so it must not block.
+     */
+    interface Callback {
+
+        /**
+         * @param reply the value of an integer reply, 0 for any other reply
+         */
+        void completed(long reply);
+
+        /**
+         * @param e a JedisDataException for an error reply, or a JedisConnectionException
+         *          if the connection broke or the command timed out
+         */
+        void failed(JedisException e);
+    }
+
+    // returned by the reply parser until the whole reply has been read
+    static final int INCOMPLETE = -1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // written chunks kept for the next commands, 2 MB
+    private static final int POOLED_CHUNKS = 32;
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int connectTimeout;
+    private final long commandTimeoutNanos;
+    private final int window;
+    private final Semaphore permits;
+    private final ThreadFactory threadFactory;
+
+    private final ConcurrentLinkedQueue<Command> queued = new ConcurrentLinkedQueue<Command>();
+    private final AtomicBoolean wakeup = new AtomicBoolean();
+    private final AtomicReference<SocketChannel> channel = new AtomicReference<SocketChannel>();
+    // not synchronized, which would pin a virtual thread blocked connecting
+    private final ReentrantLock connectLock = new ReentrantLock();
+    private volatile boolean running = false;
+    private Selector selector;
+    private Thread loop;
+
+    // event loop thread only
+    private final ArrayDeque<Command> inFlight = new ArrayDeque<Command>();
+    private final RespWriter out = new RespWriter(CHUNK_SIZE, POOLED_CHUNKS);
+    private ByteBuffer in = ByteBuffer.allocateDirect(16 * 1024);
+    private SelectionKey key;
+    // the integer or the error message of the last reply parsed
+    private long integer;
+    private String error;
+
+    AsyncRedisClient(String host, int port, String password, int connectTimeout, long commandTimeout, int window, ThreadFactory threadFactory) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.connectTimeout = connectTimeout;
+        this.commandTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(commandTimeout);
+        this.window = window;
+        this.permits = new Semaphore(window);
+        this.threadFactory = threadFactory;
+    }
+
+    synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        running = true;
+        loop = threadFactory.newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+        loop.start();
+    }
+
+    boolean isConnected() {
+        return channel.get() != null;
+    }
+
+    /**
+     * Opens the connection if there's none, authenticates and pings, blocking for up to
+     * <code>connectTimeout</code> per step.
+     *
+     * @throws JedisException if Redis can't be reached, or refuses the password
+     */
+    void connect() {
+        connectLock.lock();
+        try {
+            if (!isConnected()) {
+                open();
+            }
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private void open() {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.socket().setTcpNoDelay(true);
+            ch.socket().setKeepAlive(true);
+            ch.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+            // the handshake is done blocking, before any command can be queued
+            ch.socket().setSoTimeout(connectTimeout);
+            InputStream input = ch.socket().getInputStream();
+            if (password != null) {
+                handshake(ch, input, "AUTH", password);
+            }
+            handshake(ch, input, "PING");
+            ch.configureBlocking(false);
+        } catch (IOException e) {
+            close(ch);
+            throw new JedisConnectionException("Can't connect to Redis at " + host + ":" + port, e);
+        } catch (JedisException e) {
+            close(ch);
+            throw e;
+        }
+        channel.set(ch);
+        selector.wakeup();
+    }
+
+    private static void handshake(SocketChannel ch, InputStream input, String... command) throws IOException {
+        byte[][] args = new byte[command.length][];
+        for (int i = 0; i < command.length; i++) {
+            args[i] = SafeEncoder.encode(command[i]);
+        }
+        RespWriter frame = new RespWriter(256, 0);
+        frame.command(args);
+        // still blocking, so it writes everything
+        frame.writeTo(ch);
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) throw new JedisConnectionException("Connection closed by Redis during " + command[0]);
+            if (b != '\r') line.append((char) b);
+        }
+        if (line.length() == 0 || line.charAt(0) == '-') {
+            throw new JedisDataException(line.length() == 0 ? "Empty reply to " + command[0] : line.substring(1));
+        }
+    }
+
+    /**
+     * Queues a command, waiting up to <code>commandTimeout</code> for room in the window.
+     *
+     * @param command the command name followed by its arguments, which must not change
+     *                until the callback was called
+     * @return false if the window stayed full, in which case the callback won't be called
+     */
+    boolean send(byte[][] command, Callback callback) throws InterruptedException {
+        if (!permits.tryAcquire(commandTimeoutNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        if (!isConnected() || !running) {
+            permits.release();
+            callback.failed(new JedisConnectionException("Not connected to Redis at " + host + ":" + port));
+            return true;
+        }
+        Command queuedCommand = new Command(command, callback);
+        queued.add(queuedCommand);
+        if (!running && queued.remove(queuedCommand)) {
+            // the loop stopped meanwhile, and won't fail it
+            fail(queuedCommand, new JedisConnectionException("Connection to Redis at " + host + ":" + port + " closed"));
+            return true;
+        }
+        if (wakeup.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a command and waits for its reply.
+     *
+     * @throws JedisException as passed to {@link Callback#failed(JedisException)}, or a
+     *         JedisConnectionException if there was no reply in time
+     */
+    long execute(byte[][] command) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] reply = new long[1];
+        final JedisException[] error = new JedisException[1];
+        Callback callback = new Callback() {
+            public void completed(long value) {
+                reply[0] = value;
+                done.countDown();
+            }
+
+            public void failed(JedisException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        };
+        try {
+            if (!send(command, callback) || !done.await(commandTimeoutNanos * 2, TimeUnit.NANOSECONDS)) {
+                throw new JedisConnectionException("No reply from Redis at " + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("Interrupted waiting for Redis", e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return reply[0];
+    }
+
+    /**
+     * @return the number of commands queued or waiting for their reply
+     */
+    int inFlight() {
+        return window - permits.availablePermits();
+    }
+
+    /**
+     * Waits until every command was completed.
+     *
+     * @return false if some were still in flight after <code>millis</code>
+     */
+    boolean awaitIdle(long millis) throws InterruptedException {
+        if (!permits.tryAcquire(window, millis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        permits.release(window);
+        return true;
+    }
+
+    /**
+     * Stops the event loop, failing the commands still in flight, and closes the connection.
+     */
+    void close() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = loop;
+        }
+        selector.wakeup();
+        try {
+            t.join(TimeUnit.NANOSECONDS.toMillis(commandTimeoutNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select(selectTimeout());
+                wakeup.set(false);
+                selector.selectedKeys().clear();
+                SocketChannel ch = channel.get();
+                if (ch != null && (key == null || key.channel() != ch)) {
+                    key = ch.register(selector, SelectionKey.OP_READ);
+                }
+                if (key == null) {
+                    // commands queued while the connection broke wait for the next one
+                    continue;
+                }
+                try {
+                    read();
+                    write();
+                    checkTimeout();
+                } catch (IOException e) {
+                    broken(new JedisConnectionException("Connection to Redis at " + host + ":" + port + " broke", e));
+                } catch (JedisConnectionException e) {
+                    broken(e);
+                }
+            }
+        } catch (IOException e) {
+        	logger.error("Redis event loop failed", e);
+        } finally {
+            // before failing the queued commands, so that send() fails the later ones itself
+            running = false;
+            JedisConnectionException closed = new JedisConnectionException("Connection to Redis at " + host + ":" + port + " closed");
+            broken(closed);
+            failQueued(closed);
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private long selectTimeout() {
+        Command oldest = inFlight.peek();
+        if (oldest == null) {
+            return 0;
+        }
+        long left = oldest.deadline - System.nanoTime();
+        // 0 would block until woken up
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+    }
+
+    /**
+     * Encodes the queued commands and writes as much as the socket takes, waiting for it to
+     * be writable again if it didn't take everything.
+     */
+    private void write() throws IOException {
+        Command command;
+        while ((command = queued.poll()) != null) {
+            out.command(command.args);
+            command.deadline = System.nanoTime() + commandTimeoutNanos;
+            inFlight.add(command);
+        }
+        if (out.isEmpty()) {
+            return;
+        }
+        boolean written = out.writeTo((SocketChannel) key.channel());
+        key.interestOps(written ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read() throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        int n;
+        while ((n = ch.read(in)) > 0 || !in.hasRemaining()) {
+            if (!in.hasRemaining()) {
+                // a reply larger than the buffer
+                ByteBuffer bigger = ByteBuffer.allocateDirect(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+                continue;
+            }
+            in.flip();
+            while (true) {
+                int start = in.position();
+                int type = parse(in);
+                if (type == INCOMPLETE) {
+                    in.position(start);
+                    break;
+                }
+                complete(type);
+            }
+            in.compact();
+        }
+        if (n < 0) {
+            throw new JedisConnectionException("Connection closed by Redis at " + host + ":" + port);
+        }
+    }
+
+    private void complete(int type) {
+        Command command = inFlight.poll();
+        if (command == null) {
+            throw new JedisConnectionException("Unexpected reply from Redis at " + host + ":" + port);
+        }
+        try {
+            if (type == '-') {
+                command.callback.failed(new JedisDataException(error));
+            } else {
+                command.callback.completed(type == ':' ? integer : 0);
+            }
+        } catch (RuntimeException e) {
+        	logger.error("Command callback failed", e);
+        } finally {
+            // only once completed, so that awaitIdle() covers the callbacks
+            permits.release();
+        }
+    }
+
+    private void checkTimeout() {
+        Command oldest = inFlight.peek();
+        if (oldest != null && System.nanoTime() - oldest.deadline >= 0) {
+            throw new JedisConnectionException("No reply from Redis at " + host + ":" + port + " within "
+                + TimeUnit.NANOSECONDS.toMillis(commandTimeoutNanos) + " ms");
+        }
+    }
+
+    /**
+     * Closes the connection and fails every command not answered yet.
+     */
+    private void broken(JedisConnectionException e) {
+        // taken while the connection is still set: commands queued once it's gone wait for
+        // the next one
+        List<Command> unsent = new ArrayList<Command>();
+        Command command;
+        while ((command = queued.poll()) != null) {
+            unsent.add(command);
+        }
+        if (key != null) {
+            key.cancel();
+            SocketChannel ch = (SocketChannel) key.channel();
+            channel.compareAndSet(ch, null);
+            close(ch);
+            key = null;
+        } else if (!running) {
+            close(channel.getAndSet(null));
+        }
+        out.clear();
+        in.clear();
+        while ((command = inFlight.poll()) != null) {
+            fail(command, e);
+        }
+        for (Command c : unsent) {
+            fail(c, e);
+        }
+    }
+
+    private void failQueued(JedisConnectionException e) {
+        Command command;
+        while ((command = queued.poll()) != null) {
+            fail(command, e);
+        }
+    }
+
+    private void fail(Command command, JedisException e) {
+        try {
+            command.callback.failed(e);
+        } catch (RuntimeException re) {
+        	logger.error("Command callback failed", re);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void close(SocketChannel ch) {
+        if (ch == null) {
+            return;
+        }
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Parses one reply from the buffer, keeping only the value of an integer reply and the
+     * message of an error, so that the replies to the pushes allocate nothing.
+     *
+     * @return the type of the reply, '+', '-', ':', '$' or '*', or {@link #INCOMPLETE} if
+     *         the buffer does not hold all of it yet
+     */
+    int parse(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return INCOMPLETE;
+        }
+        byte type = buffer.get();
+        int start = buffer.position();
+        int end = lineEnd(buffer, start);
+        if (end < 0) {
+            return INCOMPLETE;
+        }
+        buffer.position(end + 2);
+        switch (type) {
+        case '+':
+            return type;
+        case '-':
+            error = string(buffer, start, end);
+            return type;
+        case ':':
+            integer = number(buffer, start, end);
+            return type;
+        case '$': {
+            int length = (int) number(buffer, start, end);
+            if (length >= 0) {
+                // the content is skipped
+                if (buffer.remaining() < length + 2) {
+                    return INCOMPLETE;
+                }
+                buffer.position(buffer.position() + length + 2);
+            }
+            return type;
+        }
+        case '*': {
+            long count = number(buffer, start, end);
+            for (long i = 0; i < count; i++) {
+                if (parse(buffer) == INCOMPLETE) {
+                    return INCOMPLETE;
+                }
+            }
+            return type;
+        }
+        default:
+            throw new JedisConnectionException("Unknown reply type '" + (char) type + "'");
+        }
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit() - 1; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return SafeEncoder.encode(bytes);
+    }
+
+    private static long number(ByteBuffer buffer, int start, int end) {
+        boolean negative = buffer.get(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static final class Command {
+        final byte[][] args;
+        final Callback callback;
+        long deadline;
+
+        Command(byte[][] args, Callback callback) {
+            this.args = args;
+            this.callback = callback;
+        }
+    }
+
+}
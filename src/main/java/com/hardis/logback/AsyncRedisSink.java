@@ -0,0 +1,19 @@
+package com.hardis.logback;
+
+/**
+ * A {@link RedisSink} which can also spell out the command storing a batch, so that the
+ * batch can be sent by the asynchronous transport rather than through Jedis.
+ * <p>
+ * Errors returned by Redis surface as a {@link redis.clients.jedis.exceptions.JedisDataException},
+ * as with Jedis.
+ */
+public interface AsyncRedisSink extends RedisSink {
+
+    /**
+     * @return the arguments of the command storing the events, starting with its name. The
+     *         events may be referenced rather than copied, but not the <code>events</code>
+     *         array itself, which the flush workers reuse.
+     */
+    byte[][] command(byte[] key, byte[][] events);
+
+}
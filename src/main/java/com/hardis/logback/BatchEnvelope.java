@@ -0,0 +1,350 @@
+package com.hardis.logback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs several encoded events into a single Redis value, optionally compressed, and
+ * unpacks them again on the consumer side.
+ * <p>
+ * An envelope is a 11 byte header followed by the payload:
+ * <pre>
+ * byte 0x00 (marker, never starts a JSON or text event), byte version (1), byte codec,
+ * int count, int payload length before compression, payload
+ * </pre>
+ * Once uncompressed, the payload holds <code>count</code> times an int length followed by
+ * that many bytes of event. Ints are big-endian. The <code>deflate</code> codec produces a
+ * zlib stream, which may use a preset dictionary: the stream names it by its Adler-32, see
+ * {@link #decode(byte[], byte[]...)}. {@link #DEFAULT_DICTIONARY} is tuned for
+ * {@link JSONEventLayout} and always known to the decoder.
+ * <p>
+ * Run this class to unpack envelopes from the command line:
+ * <code>java com.hardis.logback.BatchEnvelope [file...]</code> reads one envelope per file,
+ * or from standard input, and prints one event per line.
+ */
+public final class BatchEnvelope {
+
+	public static final String CODEC_PLAIN = "plain";
+	public static final String CODEC_DEFLATE = "deflate";
+
+	public static final byte MARKER = 0;
+	public static final byte VERSION = 1;
+	public static final byte PLAIN = 0;
+	public static final byte DEFLATE = 1;
+
+	private static final int HEADER = 11;
+	// deflate expands its input at most 1032 times
+	private static final int MAX_DEFLATE_RATIO = 1032;
+
+	/**
+	 * The largest uncompressed payload {@link #decode(byte[], byte[]...)} accepts, far above
+	 * any batch a producer sends: a corrupt or forged header can't make it allocate more.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 256 * 1024 * 1024;
+
+	/**
+	 * The field names and common values of {@link JSONEventLayout}'s output. Deflate looks
+	 * back for matches from the end, so the most frequent strings come last.
+	 */
+	public static final byte[] DEFAULT_DICTIONARY = ("\\n\\tat java.lang.Thread.run(Thread.java:"
+			+ "\\n\\tat java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:"
+			+ "\\n\\tat java.lang.reflect.Method.invoke(Method.java:"
+			+ "\\n\\tat sun.reflect.\\n\\tat org.springframework.\\n\\tCaused by: java.lang.RuntimeException: "
+			+ "\\n\\tat \\n\\t... common frames omitted\\n\\tat java.lang.IllegalStateException: "
+			+ "\",\"location\":{\"class\":\"\",\"method\":\"\",\"file\":\"\",\"line\":\"\"},\"properties\":{\"\":\"\"}"
+			+ ",\"level\":\"DEBUG\",\"level\":\"ERROR\",\"level\":\"WARN\",\"throwable\":\"java."
+			+ "{\"source\":\"\",\"host\":\"\",\"path\":\"\",\"type\":\"\",\"tags\":[\"\"],\"message\":\""
+			+ "\",\"@timestamp\":\"\",\"logger\":\"com.\",\"level\":\"INFO\",\"thread\":\"main\"}")
+			.getBytes(JsonBuffer.UTF_8);
+
+	private final byte codec;
+	private final int level;
+	private final byte[] dictionary;
+	// Deflater is not thread-safe, and costly to create
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>();
+	// every thread's deflater, their native memory is only freed by end()
+	private final List<Deflater> allDeflaters = new ArrayList<Deflater>();
+	private volatile boolean closed = false;
+	// deflate output, copied to the exact size
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+	private final ThreadLocal<JsonBuffer> buffers = new ThreadLocal<JsonBuffer>() {
+		@Override
+		protected JsonBuffer initialValue() {
+			return new JsonBuffer(8192);
+		}
+	};
+
+	/**
+	 * @param codec {@link #CODEC_PLAIN} or {@link #CODEC_DEFLATE}
+	 * @param level deflate compression level, see {@link Deflater}
+	 * @param dictionary deflate preset dictionary, or null for none
+	 */
+	public BatchEnvelope(String codec, int level, byte[] dictionary) {
+		if (CODEC_PLAIN.equalsIgnoreCase(codec)) {
+			this.codec = PLAIN;
+		} else if (CODEC_DEFLATE.equalsIgnoreCase(codec)) {
+			this.codec = DEFLATE;
+		} else {
+			throw new IllegalArgumentException("Unknown envelope codec '" + codec + "', expected '" + CODEC_PLAIN + "' or '" + CODEC_DEFLATE + "'");
+		}
+		this.level = level;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Packs <code>events[from]</code> to <code>events[to - 1]</code> into one envelope.
+	 */
+	public byte[] encode(byte[][] events, int from, int to) {
+		JsonBuffer buf = buffers.get();
+		buf.reset(1024 * 1024, 8192);
+		// header, filled in below
+		for (int i = 0; i < HEADER; i++) {
+			buf.write((byte) 0);
+		}
+		for (int i = from; i < to; i++) {
+			writeInt(buf, events[i].length);
+			buf.write(events[i]);
+		}
+		int payloadLength = buf.size() - HEADER;
+		byte[] envelope;
+		if (codec == PLAIN) {
+			envelope = buf.toByteArray();
+		} else {
+			envelope = deflate(buf.array(), HEADER, payloadLength);
+		}
+		envelope[0] = MARKER;
+		envelope[1] = VERSION;
+		envelope[2] = codec;
+		putInt(envelope, 3, to - from);
+		putInt(envelope, 7, payloadLength);
+		return envelope;
+	}
+
+	private byte[] deflate(byte[] input, int offset, int length) {
+		if (closed) {
+			throw new IllegalStateException("Envelope closed");
+		}
+		Deflater deflater = deflaters.get();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			deflaters.set(deflater);
+			synchronized (allDeflaters) {
+				allDeflaters.add(deflater);
+			}
+		}
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		// compressed logs are much smaller than this in practice, grown below if not
+		byte[] out = scratch.get();
+		if (out == null || out.length < HEADER + length / 2 + 64) {
+			out = new byte[HEADER + length / 2 + 64];
+		}
+		int size = HEADER;
+		while (!deflater.finished()) {
+			if (size == out.length) {
+				byte[] larger = new byte[out.length * 2];
+				System.arraycopy(out, 0, larger, 0, size);
+				out = larger;
+			}
+			size += deflater.deflate(out, size, out.length - size);
+		}
+		// same limit as the input buffer, so that one huge batch doesn't pin its output
+		scratch.set(out.length > 1024 * 1024 ? null : out);
+		byte[] envelope = new byte[size];
+		System.arraycopy(out, 0, envelope, 0, size);
+		return envelope;
+	}
+
+	/**
+	 * Frees the native memory of the deflaters, once no thread encodes anymore: encoding
+	 * afterwards fails.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (allDeflaters) {
+			for (Deflater deflater : allDeflaters) {
+				deflater.end();
+			}
+			allDeflaters.clear();
+		}
+		deflaters.remove();
+	}
+
+	/**
+	 * @return whether <code>value</code> is an envelope rather than a single event
+	 */
+	public static boolean isEnvelope(byte[] value) {
+		return value.length >= HEADER && value[0] == MARKER;
+	}
+
+	/**
+	 * Unpacks an envelope.
+	 *
+	 * @param dictionaries the custom dictionaries the producers may use, besides
+	 *            {@link #DEFAULT_DICTIONARY}
+	 * @return the events, in the order they were logged
+	 * @throws IllegalArgumentException if <code>envelope</code> is not a valid envelope
+	 */
+	public static byte[][] decode(byte[] envelope, byte[]... dictionaries) {
+		if (!isEnvelope(envelope)) {
+			throw new IllegalArgumentException("Not an envelope");
+		}
+		if (envelope[1] != VERSION) {
+			throw new IllegalArgumentException("Unsupported envelope version " + envelope[1]);
+		}
+		int count = getInt(envelope, 3);
+		int payloadLength = getInt(envelope, 7);
+		if (count < 0 || payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Corrupt envelope header");
+		}
+		// each event takes at least its length
+		if (count > payloadLength / 4) {
+			throw new IllegalArgumentException("Corrupt envelope header");
+		}
+
+		byte[] payload;
+		int offset;
+		if (envelope[2] == PLAIN) {
+			if (payloadLength != envelope.length - HEADER) {
+				throw new IllegalArgumentException("Truncated envelope");
+			}
+			payload = envelope;
+			offset = HEADER;
+		} else if (envelope[2] == DEFLATE) {
+			if (payloadLength > (long) (envelope.length - HEADER) * MAX_DEFLATE_RATIO) {
+				throw new IllegalArgumentException("Corrupt envelope header");
+			}
+			payload = inflate(envelope, payloadLength, dictionaries);
+			offset = 0;
+		} else {
+			throw new IllegalArgumentException("Unsupported envelope codec " + envelope[2]);
+		}
+
+		byte[][] events = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			if (offset + 4 > payload.length) {
+				throw new IllegalArgumentException("Truncated envelope");
+			}
+			int length = getInt(payload, offset);
+			offset += 4;
+			if (length < 0 || offset + length > payload.length) {
+				throw new IllegalArgumentException("Truncated envelope");
+			}
+			events[i] = new byte[length];
+			System.arraycopy(payload, offset, events[i], 0, length);
+			offset += length;
+		}
+		return events;
+	}
+
+	private static byte[] inflate(byte[] envelope, int payloadLength, byte[][] dictionaries) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(envelope, HEADER, envelope.length - HEADER);
+			byte[] payload = new byte[payloadLength];
+			int size = 0;
+			while (size < payloadLength) {
+				int n = inflater.inflate(payload, size, payloadLength - size);
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(dictionary(inflater.getAdler(), dictionaries));
+					} else if (inflater.finished() || inflater.needsInput()) {
+						throw new IllegalArgumentException("Truncated envelope");
+					}
+				}
+				size += n;
+			}
+			return payload;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt envelope: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] dictionary(int adler, byte[][] dictionaries) {
+		if (adler == adler32(DEFAULT_DICTIONARY)) {
+			return DEFAULT_DICTIONARY;
+		}
+		for (byte[] dictionary : dictionaries) {
+			if (adler == adler32(dictionary)) {
+				return dictionary;
+			}
+		}
+		throw new IllegalArgumentException("Envelope compressed with an unknown dictionary, Adler-32 " + Integer.toHexString(adler));
+	}
+
+	private static int adler32(byte[] b) {
+		Adler32 adler = new Adler32();
+		adler.update(b);
+		return (int) adler.getValue();
+	}
+
+	private static void writeInt(JsonBuffer buf, int v) {
+		buf.write((byte) (v >>> 24));
+		buf.write((byte) (v >>> 16));
+		buf.write((byte) (v >>> 8));
+		buf.write((byte) v);
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Prints the events of the envelopes in the given files, or read from standard input.
+	 */
+	public static void main(String[] args) throws IOException {
+		OutputStream out = System.out;
+		if (args.length == 0) {
+			print(readFully(System.in), out);
+		}
+		for (String file : args) {
+			InputStream in = new FileInputStream(file);
+			try {
+				print(readFully(in), out);
+			} finally {
+				in.close();
+			}
+		}
+		out.flush();
+	}
+
+	private static void print(byte[] envelope, OutputStream out) throws IOException {
+		for (byte[] event : decode(envelope)) {
+			out.write(event);
+			out.write('\n');
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = in.read(chunk)) > 0) {
+			bytes.write(chunk, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+
+}
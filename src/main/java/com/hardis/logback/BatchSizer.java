@@ -0,0 +1,47 @@
+package com.hardis.logback;
+
+/**
+ * Adjusts the batch size between 1 and <code>maxBatchSize</code> from the pushes made: it
+ * grows by a quarter while full batches are pushed within the target latency and events
+ * keep piling up, and halves when a push misses the target. Safe for concurrent use.
+ */
+final class BatchSizer {
+
+    private final int max;
+    private final long targetNanos;
+    private volatile int size;
+
+    /**
+     * @param targetLatency push latency goal in milliseconds, 0 to only grow
+     */
+    BatchSizer(int initial, int max, long targetLatency) {
+        this.max = Math.max(initial, max);
+        this.targetNanos = targetLatency * 1000000L;
+        this.size = initial;
+    }
+
+    int get() {
+        return size;
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    /**
+     * Records a push.
+     *
+     * @param count number of events pushed
+     * @param nanos time taken
+     * @param backlog whether more than a batch of events is still waiting
+     */
+    synchronized void pushed(int count, long nanos, boolean backlog) {
+        int current = size;
+        if (targetNanos > 0 && nanos > targetNanos) {
+            size = Math.max(1, current / 2);
+        } else if (backlog && count >= current && current < max) {
+            size = Math.min(max, current + Math.max(1, current / 4));
+        }
+    }
+
+}
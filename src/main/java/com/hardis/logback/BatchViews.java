@@ -0,0 +1,47 @@
+package com.hardis.logback;
+
+import java.util.Arrays;
+
+/**
+ * Recycles the exact-length arrays an incomplete batch is handed to a {@link RedisSink} in,
+ * since Jedis commands take no length. One array is kept per length for a few lengths,
+ * picked by the low bits of the length. Used by a single flush worker.
+ */
+final class BatchViews {
+
+    private final byte[][][] views;
+
+    /**
+     * @param slots number of lengths kept, rounded up to a power of two
+     */
+    BatchViews(int slots) {
+        this.views = new byte[Integer.highestOneBit(Math.max(2, slots) - 1) << 1][][];
+    }
+
+    /**
+     * @return <code>batch</code> if it holds exactly <code>count</code> events, or a recycled
+     *         array holding its first <code>count</code> events, to {@link #release(byte[][])}
+     *         once pushed
+     */
+    byte[][] of(byte[][] batch, int count) {
+        if (batch.length == count) {
+            return batch;
+        }
+        int slot = count & (views.length - 1);
+        byte[][] view = views[slot];
+        if (view == null || view.length != count) {
+            view = new byte[count][];
+            views[slot] = view;
+        }
+        System.arraycopy(batch, 0, view, 0, count);
+        return view;
+    }
+
+    /**
+     * Drops the references to the events of a pushed view.
+     */
+    void release(byte[][] view) {
+        Arrays.fill(view, null);
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.hardis.logback;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * {@link EventQueue} backed by an {@link ArrayBlockingQueue}, i.e. a single lock shared by
+ * producers and consumer. This was the only queue available before the ring buffer was added.
+ */
+public class BlockingEventQueue<E> implements EventQueue<E> {
+
+    private final ArrayBlockingQueue<E> queue;
+    private final int capacity;
+
+    public BlockingEventQueue(int capacity) {
+        this.queue = new ArrayBlockingQueue<E>(capacity);
+        this.capacity = capacity;
+    }
+
+    public boolean offer(E e) {
+        return queue.offer(e);
+    }
+
+    public E poll() {
+        return queue.poll();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
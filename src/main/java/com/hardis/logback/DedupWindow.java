@@ -0,0 +1,163 @@
+package com.hardis.logback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Collapses the events sharing a logger, level, message template and throwable within a
+ * window into a single {@link RepeatedEvent}.
+ * <p>
+ * The events are held in a fixed-size open addressing table, allocated once: adding an event
+ * allocates nothing. An event which finds the table three quarters full, or no free slot
+ * within a few probes, is not held and should be pushed as is. Used by a single flush worker,
+ * so not thread safe.
+ */
+final class DedupWindow {
+
+    private static final int MAX_PROBES = 8;
+    // throwable causes taken into the fingerprint
+    private static final int MAX_CAUSES = 8;
+
+    private final long windowNanos;
+    private final int mask;
+    private final int maxSize;
+    // per slot
+    private final ILoggingEvent[] firsts;
+    private final int[] hashes;
+    private final long[] fingerprints;
+    private final int[] counts;
+    private final long[] lastTimestamps;
+    // slots in the order they were taken
+    private final int[] order;
+    private int size;
+    private int polled;
+    private long windowStart;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    DedupWindow(int capacity, long windowMillis) {
+        int slots = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        this.windowNanos = windowMillis * 1000000L;
+        this.mask = slots - 1;
+        this.maxSize = slots / 4 * 3;
+        this.firsts = new ILoggingEvent[slots];
+        this.hashes = new int[slots];
+        this.fingerprints = new long[slots];
+        this.counts = new int[slots];
+        this.lastTimestamps = new long[slots];
+        this.order = new int[maxSize];
+    }
+
+    /**
+     * @return true if the event is now held, false if it should be pushed as is
+     */
+    boolean add(ILoggingEvent event, long now) {
+        if (polled > 0) {
+            // an emptying window takes nothing until it is empty
+            return false;
+        }
+        long fingerprint = fingerprint(event.getThrowableProxy());
+        int hash = hash(event, fingerprint);
+        for (int probe = 0, slot = hash & mask; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            ILoggingEvent first = firsts[slot];
+            if (first == null) {
+                if (size == maxSize) {
+                    return false;
+                }
+                if (size == 0) {
+                    windowStart = now;
+                }
+                firsts[slot] = event;
+                hashes[slot] = hash;
+                fingerprints[slot] = fingerprint;
+                counts[slot] = 1;
+                lastTimestamps[slot] = event.getTimeStamp();
+                order[size++] = slot;
+                return true;
+            }
+            if (hashes[slot] == hash && fingerprints[slot] == fingerprint && same(first, event)) {
+                counts[slot]++;
+                lastTimestamps[slot] = Math.max(lastTimestamps[slot], event.getTimeStamp());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the window of the oldest held event is over
+     */
+    boolean expired(long now) {
+        return size > 0 && now - windowStart >= windowNanos;
+    }
+
+    int size() {
+        return size - polled;
+    }
+
+    /**
+     * Removes the held events in the order they were first added. Once this was called, the
+     * window holds no new events until it is emptied.
+     *
+     * @return the next held event, wrapped in a {@link RepeatedEvent} if it was repeated, or
+     *         null once the window is empty
+     */
+    ILoggingEvent poll() {
+        if (polled == size) {
+            size = 0;
+            polled = 0;
+            return null;
+        }
+        int slot = order[polled++];
+        ILoggingEvent first = firsts[slot];
+        int count = counts[slot];
+        firsts[slot] = null;
+        if (polled == size) {
+            size = 0;
+            polled = 0;
+        }
+        return count == 1 ? first : new RepeatedEvent(first, count, lastTimestamps[slot]);
+    }
+
+    private static boolean same(ILoggingEvent a, ILoggingEvent b) {
+        return a.getLevel() == b.getLevel()
+            && equal(a.getLoggerName(), b.getLoggerName())
+            && equal(a.getMessage(), b.getMessage());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(ILoggingEvent event, long fingerprint) {
+        int h = event.getLevel().toInt();
+        String logger = event.getLoggerName();
+        h = 31 * h + (logger == null ? 0 : logger.hashCode());
+        String message = event.getMessage();
+        h = 31 * h + (message == null ? 0 : message.hashCode());
+        h = 31 * h + (int) (fingerprint ^ (fingerprint >>> 32));
+        // spread the high bits over the masked ones
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hashes the class and frames of a throwable and its causes, leaving out their messages
+     * which often hold variable data.
+     */
+    static long fingerprint(IThrowableProxy tp) {
+        long h = 0;
+        for (int depth = 0; tp != null && depth < MAX_CAUSES; depth++, tp = tp.getCause()) {
+            h = 31 * h + tp.getClassName().hashCode();
+            StackTraceElementProxy[] frames = tp.getStackTraceElementProxyArray();
+            if (frames != null) {
+                for (StackTraceElementProxy frame : frames) {
+                    h = 31 * h + frame.getStackTraceElement().hashCode();
+                }
+            }
+        }
+        return h;
+    }
+
+}
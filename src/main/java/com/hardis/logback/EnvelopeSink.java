@@ -0,0 +1,71 @@
+package com.hardis.logback;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Packs the events of a batch into {@link BatchEnvelope envelopes} of up to
+ * <code>envelopeSize</code> events, and has another sink store the envelopes.
+ * <p>
+ * Supports the asynchronous transport through {@link Async}, wrapping an
+ * {@link AsyncRedisSink}.
+ */
+public class EnvelopeSink implements RedisSink {
+
+    private final RedisSink sink;
+    private final BatchEnvelope envelope;
+    private final int envelopeSize;
+
+    /**
+     * @param envelopeSize maximum number of events per envelope, 0 for the whole batch
+     */
+    public EnvelopeSink(RedisSink sink, BatchEnvelope envelope, int envelopeSize) {
+        this.sink = sink;
+        this.envelope = envelope;
+        this.envelopeSize = envelopeSize;
+    }
+
+    public void push(Jedis jedis, byte[] key, byte[][] events) {
+        sink.push(jedis, key, pack(events));
+    }
+
+    public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+        return sink.push(pipeline, key, pack(events));
+    }
+
+    /**
+     * Frees the resources of the envelope once the appender stopped pushing.
+     */
+    public void close() {
+        envelope.close();
+    }
+
+    byte[][] pack(byte[][] events) {
+        int size = envelopeSize > 0 ? envelopeSize : Math.max(events.length, 1);
+        byte[][] envelopes = new byte[(events.length + size - 1) / size][];
+        for (int i = 0; i < envelopes.length; i++) {
+            int from = i * size;
+            envelopes[i] = envelope.encode(events, from, Math.min(from + size, events.length));
+        }
+        return envelopes;
+    }
+
+    /**
+     * An envelope sink the asynchronous transport can use.
+     */
+    public static class Async extends EnvelopeSink implements AsyncRedisSink {
+
+        private final AsyncRedisSink sink;
+
+        public Async(AsyncRedisSink sink, BatchEnvelope envelope, int envelopeSize) {
+            super(sink, envelope, envelopeSize);
+            this.sink = sink;
+        }
+
+        public byte[][] command(byte[] key, byte[][] events) {
+            return sink.command(key, pack(events));
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.hardis.logback;
+
+/**
+ * Bounded queue holding the events waiting to be flushed to Redis.
+ * <p>
+ * Any number of appending threads may call {@link #offer(Object)} concurrently, while
+ * {@link #poll()} is only ever called by the single flush thread.
+ *
+ * @param <E> the queued element type
+ */
+public interface EventQueue<E> {
+
+    /**
+     * Adds an element if there is room for it.
+     *
+     * @return false if the queue is full and the element was dropped
+     */
+    boolean offer(E e);
+
+    /**
+     * Removes the oldest element. Must only be called from the consumer thread.
+     *
+     * @return the oldest element, or null if none is available
+     */
+    E poll();
+
+    int size();
+
+    boolean isEmpty();
+
+    int capacity();
+
+}
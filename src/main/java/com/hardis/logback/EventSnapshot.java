@@ -0,0 +1,142 @@
+package com.hardis.logback;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.ThrowableProxyVO;
+
+/**
+ * Immutable copy of the parts of an event a layout reads, queued in place of the event so
+ * that the argument array, the throwable and everything they reference can be collected
+ * before the event is pushed.
+ * <p>
+ * The message is formatted when the snapshot is taken. The arguments and the caller data are
+ * only kept when asked for, {@link #getArgumentArray()} and {@link #getCallerData()}
+ * returning null and an empty array otherwise.
+ */
+public final class EventSnapshot implements ILoggingEvent {
+
+    private final String threadName;
+    private final Level level;
+    private final String message;
+    private final Object[] argumentArray;
+    private final String formattedMessage;
+    private final String loggerName;
+    private final LoggerContextVO loggerContextVO;
+    private final IThrowableProxy throwableProxy;
+    private final StackTraceElement[] callerData;
+    private final Marker marker;
+    private final Map<String, String> mdc;
+    private final long timeStamp;
+
+    private EventSnapshot(ILoggingEvent event, String threadName, String loggerName, boolean arguments, boolean callerData) {
+        this.threadName = threadName;
+        this.level = event.getLevel();
+        this.message = event.getMessage();
+        this.argumentArray = arguments ? event.getArgumentArray() : null;
+        this.formattedMessage = event.getFormattedMessage();
+        this.loggerName = loggerName;
+        this.loggerContextVO = event.getLoggerContextVO();
+        IThrowableProxy tp = event.getThrowableProxy();
+        // the value object shares the frames, but not the throwable
+        this.throwableProxy = tp == null || tp instanceof ThrowableProxyVO ? tp : ThrowableProxyVO.build(tp);
+        this.callerData = callerData ? event.getCallerData() : CallerData.EMPTY_CALLER_DATA_ARRAY;
+        this.marker = event.getMarker();
+        Map<String, String> mdc = event.getMDCPropertyMap();
+        this.mdc = mdc != null ? mdc : Collections.<String, String> emptyMap();
+        this.timeStamp = event.getTimeStamp();
+    }
+
+    /**
+     * @param arguments whether to keep the argument array
+     * @param callerData whether to compute and keep the caller data, which must then be done
+     *                   on the logging thread
+     */
+    public static EventSnapshot of(ILoggingEvent event, boolean arguments, boolean callerData) {
+        return of(event, null, arguments, callerData);
+    }
+
+    /**
+     * @param names shares the thread and logger names between snapshots, may be null
+     */
+    static EventSnapshot of(ILoggingEvent event, StringCache names, boolean arguments, boolean callerData) {
+        if (event instanceof EventSnapshot) {
+            return (EventSnapshot) event;
+        }
+        String threadName = event.getThreadName();
+        String loggerName = event.getLoggerName();
+        if (names != null) {
+            threadName = names.get(threadName);
+            loggerName = names.get(loggerName);
+        }
+        return new EventSnapshot(event, threadName, loggerName, arguments, callerData);
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Object[] getArgumentArray() {
+        return argumentArray;
+    }
+
+    public String getFormattedMessage() {
+        return formattedMessage;
+    }
+
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public LoggerContextVO getLoggerContextVO() {
+        return loggerContextVO;
+    }
+
+    public IThrowableProxy getThrowableProxy() {
+        return throwableProxy;
+    }
+
+    public StackTraceElement[] getCallerData() {
+        return callerData;
+    }
+
+    public boolean hasCallerData() {
+        return callerData.length > 0;
+    }
+
+    public Marker getMarker() {
+        return marker;
+    }
+
+    public Map<String, String> getMDCPropertyMap() {
+        return mdc;
+    }
+
+    @Deprecated
+    public Map<String, String> getMdc() {
+        return mdc;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public void prepareForDeferredProcessing() {
+    }
+
+}
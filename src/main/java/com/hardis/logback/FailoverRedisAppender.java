@@ -37,6 +37,9 @@ public class FailoverRedisAppender extends RedisAppender {
             if (endpoints == null || endpoints.length() == 0){            	
             	throw new IllegalStateException("Must set 'endpoints'");	
             }                
+            if (isSharedEngine()) {
+                throw new IllegalStateException("SharedEngine connects to a single endpoint, it can't fail over");
+            }
             String[] endpointList = this.endpoints.split(",");
             // create HostPort list
             this.shuffled = new HostPort[endpointList.length];
@@ -75,7 +78,16 @@ public class FailoverRedisAppender extends RedisAppender {
     }
 
     @Override
-    protected synchronized boolean connect() {
+    protected boolean connect() {
+        connectLock.lock();
+        try {
+            return connectAny();
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private boolean connectAny() {
         // See if the first succeeds or we are still connected.
         if (super.connect()) {
             return true;
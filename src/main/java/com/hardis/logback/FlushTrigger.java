@@ -0,0 +1,108 @@
+package com.hardis.logback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes the flush workers of an event-driven appender: as soon as a batch is pending, or
+ * once the first pending event has waited for the linger time.
+ * <p>
+ * Appending threads only take the lock when a worker is parked with nothing pending, or
+ * when a worker is lingering and the event they queued completes a batch. Whether the
+ * event is the first one in the queue doesn't matter: a worker busy draining when it came
+ * would miss that signal, and park without anything telling it the queue filled.
+ */
+final class FlushTrigger {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+    // waiting for a first event, any event wakes them
+    private final AtomicInteger idle = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Called after an event was queued.
+     *
+     * @param queued number of events in the queue
+     */
+    void queued(int queued, int batchSize) {
+        if (idle.get() > 0 || (waiters.get() > 0 && queued >= batchSize)) {
+            lock.lock();
+            try {
+                ready.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until a batch is pending, the linger time of the oldest pending event expired,
+     * or {@link #stop()} is called.
+     *
+     * @param pending what the worker holds plus the queue size, read again on each wake-up
+     * @return true if the linger time expired, false if a batch is pending or on stop
+     */
+    boolean await(Pending pending, long lingerMillis) throws InterruptedException {
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        long lingerStart = 0;
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while (running) {
+                int count = pending.count();
+                if (count >= pending.batchSize()) {
+                    return false;
+                }
+                if (count == 0) {
+                    // nothing to linger on yet, wait for the first event
+                    lingerStart = 0;
+                    idle.incrementAndGet();
+                    try {
+                        ready.awaitNanos(lingerNanos);
+                    } finally {
+                        idle.decrementAndGet();
+                    }
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (lingerStart == 0) {
+                    lingerStart = now;
+                }
+                long remaining = lingerStart + lingerNanos - now;
+                if (remaining <= 0) {
+                    return true;
+                }
+                ready.awaitNanos(remaining);
+            }
+            return false;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void stop() {
+        running = false;
+        lock.lock();
+        try {
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    interface Pending {
+        int count();
+
+        int batchSize();
+    }
+
+}
@@ -0,0 +1,922 @@
+package com.hardis.logback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Drains batches of events from the appender's queue and pushes them to Redis.
+ * <p>
+ * A worker is only ever run by one thread at a time, so its batches and metrics need no
+ * synchronization; the metrics are volatile so the MBean can read them. Several workers can
+ * share an appender, each pushing over its own connection.
+ * <p>
+ * Each shard key has its own batch. The connections are taken when a shard is first pushed
+ * in a flush cycle: in cluster mode one per shard, from the node serving its slot, otherwise
+ * a single one serving every shard. With the async transport, batches are handed to the
+ * appender's {@link AsyncRedisClient} instead, and accounted for once Redis answered them.
+ * <p>
+ * With <code>sharedEngine</code>, the worker is driven by a {@link SharedFlushEngine}, which
+ * pipelines it together with the other appenders' workers over its own connection.
+ */
+class FlushWorker implements Runnable, FlushTrigger.Pending {
+
+	final static Logger logger = LoggerFactory.getLogger(FlushWorker.class);
+
+    private final RedisAppender appender;
+    private final BatchSizer sizer;
+    // batch size for the current flush cycle
+    private int batchSize;
+    private final byte[][] keys;
+
+    private final Object[] drained;
+    private final byte[][][] batches;
+    private final int[] messageIndex;
+    // encoded size of each batch, and the events cut from it by maxBatchBytes
+    private final long[] batchBytes;
+    // timestamp of the oldest event of each batch, Long.MAX_VALUE if none is known
+    private final long[] oldest;
+    private final List<List<byte[]>> carried;
+    private final long maxBatchBytes;
+    private final List<PendingBatch> retryBatches = new ArrayList<PendingBatch>();
+    // sent through the async transport and answered, waiting to be accounted for
+    private final ConcurrentLinkedQueue<AsyncBatch> answered = new ConcurrentLinkedQueue<AsyncBatch>();
+    // queued on the pipeline of a shared engine, until the engine synced it
+    private final List<PendingBatch> staged = new ArrayList<PendingBatch>();
+    private final BatchViews views = new BatchViews(8);
+    // null unless dedupWindow is set
+    private final DedupWindow dedup;
+    private boolean closing = false;
+
+    // per shard, only during a flush cycle
+    private final Jedis[] connections;
+    private final Pipeline[] pipelines;
+
+    // metrics, written by the worker thread only
+    private volatile long eventsDroppedInPush = 0;
+    private volatile int batchPurges = 0;
+    private volatile long eventsPushed = 0;
+    private volatile long eventsCollapsed = 0;
+
+    FlushWorker(RedisAppender appender, BatchSizer sizer) {
+        this.appender = appender;
+        this.sizer = sizer;
+        this.batchSize = sizer.get();
+        this.keys = appender.getShardKeys();
+        this.drained = new Object[sizer.getMax()];
+        this.batches = new byte[keys.length][sizer.getMax()][];
+        this.messageIndex = new int[keys.length];
+        this.batchBytes = new long[keys.length];
+        this.oldest = new long[keys.length];
+        Arrays.fill(oldest, Long.MAX_VALUE);
+        this.carried = new ArrayList<List<byte[]>>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            carried.add(new LinkedList<byte[]>());
+        }
+        this.maxBatchBytes = appender.getMaxBatchBytes() > 0 ? appender.getMaxBatchBytes() : Long.MAX_VALUE;
+        this.connections = new Jedis[keys.length];
+        this.pipelines = new Pipeline[keys.length];
+        this.dedup = appender.getDedupWindow() > 0
+            ? new DedupWindow(appender.getDedupTableSize(), appender.getDedupWindow()) : null;
+    }
+
+    public void run() {
+        flush(!appender.isAlwaysBatch());
+    }
+
+    /**
+     * Flushes whenever the trigger says so, until it is stopped. Batches are pushed as soon
+     * as they are full, incomplete ones once they lingered <code>lingerMillis</code>.
+     */
+    void loop(FlushTrigger trigger, long lingerMillis) {
+        try {
+            while (trigger.isRunning()) {
+                boolean lingered = trigger.await(this, lingerMillis);
+                if (!trigger.isRunning()) {
+                    return;
+                }
+                if (!flush(lingered)) {
+                    // Redis is down or refuses a batch, don't spin on the pending events
+                    Thread.sleep(lingerMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int count() {
+        return queued() + held() + appender.getEvents().size();
+    }
+
+    public int batchSize() {
+        return sizer.get();
+    }
+
+    /**
+     * Pushes everything this worker still holds, and whatever is left in the queue,
+     * regardless of the alwaysBatch flag.
+     */
+    void flushRemaining() {
+        closing = true;
+        if (queued() > 0 || held() > 0 || !retryBatches.isEmpty() || !appender.getEvents().isEmpty()) {
+            flush(true);
+        }
+        AsyncRedisClient client = appender.getAsyncClient();
+        if (client != null) {
+            awaitAnswers(client);
+            if (!retryBatches.isEmpty()) {
+                // lost with the connection or timed out: one more try, on a new connection
+                flush(true);
+                awaitAnswers(client);
+            }
+            dropLeftovers();
+        }
+    }
+
+    private void awaitAnswers(AsyncRedisClient client) {
+        try {
+            // the batches in flight are answered or timed out by then
+            client.awaitIdle(appender.getCommandTimeout() * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reap();
+    }
+
+    /**
+     * Counts what is still held when the appender stops as dropped.
+     */
+    private void dropLeftovers() {
+        int count = queued();
+        for (PendingBatch pb : retryBatches) {
+            count += pb.elements.length;
+        }
+        if (count == 0) {
+            return;
+        }
+    	logger.warn("Can't push " + count + " events to Redis at " + appender.getRedisAddress() + " before stopping, dropping them");
+        retryBatches.clear();
+        for (int shard = 0; shard < keys.length; shard++) {
+            carried.get(shard).clear();
+            clear(shard);
+        }
+        eventsDroppedInPush += count;
+        appender.recordDropped(count);
+    }
+
+    /**
+     * @return false if Redis is down, or a full batch is left after the cycle
+     */
+    private boolean flush(boolean pushIncomplete) {
+        batchSize = sizer.get();
+        // don't drain anything while Redis is down, unless there's a journal to spill to
+        if (!appender.connect()) {
+            spillAll();
+            syncJournal();
+            return false;
+        }
+
+        boolean broken = false;
+        try {
+            replay();
+            if (appender.getAsyncClient() != null) {
+                flushAsync(pushIncomplete);
+            } else if (appender.isPipelined()) {
+                flushPipelined(pushIncomplete);
+            } else {
+                flushBlocking(pushIncomplete);
+            }
+        } catch (JedisException je) {
+
+        	logger.debug("Can't push " + queued() + " events to Redis. Reconnecting for retry.", je);
+            broken = true;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+        	logger.error("Can't push events to Redis", e);
+        } finally {
+            releaseConnections(broken);
+            syncJournal();
+        }
+        return !broken && retryBatches.isEmpty() && room() > 0;
+    }
+
+    private void flushBlocking(boolean pushIncomplete) {
+        if (!pushFull()) {
+            // Redis still refuses a batch, leave the events in the queue
+            return;
+        }
+
+        int count;
+        while ((count = appender.drain(drained, room())) > 0) {
+            addToBatch(count);
+
+            if (!pushFull()) return;
+        }
+
+        if (releaseHeld() && !pushFull()) return;
+
+        if (pushIncomplete) {
+            // push incomplete batches
+            for (int shard = 0; shard < keys.length; shard++) {
+                while (messageIndex[shard] > 0 && push(shard)) ;
+            }
+        }
+    }
+
+    /**
+     * @return false if a full batch could not be pushed
+     */
+    private boolean pushFull() {
+        boolean pushed = true;
+        for (int shard = 0; shard < keys.length; shard++) {
+            while (isFull(shard)) {
+                if (!push(shard)) {
+                    pushed = false;
+                    break;
+                }
+            }
+        }
+        return pushed;
+    }
+
+    /**
+     * @return whether the batch of <code>shard</code> reached the count or the byte limit
+     */
+    private boolean isFull(int shard) {
+        return messageIndex[shard] >= batchSize || !carried.get(shard).isEmpty();
+    }
+
+    /**
+     * @return how many events can be drained without overflowing any batch
+     */
+    private int room() {
+        int max = 0;
+        for (int shard = 0; shard < keys.length; shard++) {
+            max = Math.max(max, isFull(shard) ? batchSize : messageIndex[shard]);
+        }
+        return Math.max(0, batchSize - max);
+    }
+
+    private int queued() {
+        int total = 0;
+        for (int shard = 0; shard < keys.length; shard++) {
+            total += messageIndex[shard] + carried.get(shard).size();
+        }
+        return total;
+    }
+
+    /**
+     * Empties the batch of <code>shard</code>, once pushed or dropped, and starts the next one
+     * with the events cut from it.
+     */
+    private void clear(int shard) {
+        // don't keep the pushed events alive until their slots are reused
+        Arrays.fill(batches[shard], 0, messageIndex[shard], null);
+        messageIndex[shard] = 0;
+        batchBytes[shard] = 0;
+        List<byte[]> carry = carried.get(shard);
+        while (!carry.isEmpty() && messageIndex[shard] < batchSize && fits(shard, carry.get(0))) {
+            add(shard, carry.remove(0));
+        }
+        if (messageIndex[shard] == 0) {
+            // the carried events were drained with the pushed ones, keep their age otherwise
+            oldest[shard] = Long.MAX_VALUE;
+        }
+    }
+
+    private boolean fits(int shard, byte[] message) {
+        // an event larger than the limit goes alone
+        return messageIndex[shard] == 0 || batchBytes[shard] + message.length <= maxBatchBytes;
+    }
+
+    private void add(int shard, byte[] message) {
+        batches[shard][messageIndex[shard]++] = message;
+        batchBytes[shard] += message.length;
+    }
+
+    private void addToBatch(int count) {
+        long now = dedup != null ? System.nanoTime() : 0;
+        for (int i = 0; i < count; i++) {
+            Object element = drained[i];
+            drained[i] = null;
+            if (dedup != null && element instanceof ILoggingEvent && dedup.add((ILoggingEvent) element, now)) {
+                continue;
+            }
+            addElement(element);
+        }
+    }
+
+    /**
+     * Moves the events collapsed by the dedup window to the batches, once the window is over
+     * or the appender stops.
+     *
+     * @return whether events were moved
+     */
+    private boolean releaseHeld() {
+        if (dedup == null || !(closing ? dedup.size() > 0 : dedup.expired(System.nanoTime()))) {
+            return false;
+        }
+        ILoggingEvent event;
+        while ((event = dedup.poll()) != null) {
+            if (event instanceof RepeatedEvent) {
+                eventsCollapsed += ((RepeatedEvent) event).getRepeatCount() - 1;
+            }
+            addElement(event);
+        }
+        return true;
+    }
+
+    private int held() {
+        return dedup != null ? dedup.size() : 0;
+    }
+
+    /**
+     * Encodes an element if needed and adds it to the batch of its shard, or to the events
+     * carried to the next batch if it doesn't fit.
+     */
+    private void addElement(Object element) {
+        try {
+            byte[] message;
+            int shard;
+            if (element instanceof RedisAppender.EncodedEvent) {
+                RedisAppender.EncodedEvent encoded = (RedisAppender.EncodedEvent) element;
+                message = encoded.bytes;
+                shard = encoded.shard;
+            } else if (element instanceof byte[]) {
+                message = (byte[]) element;
+                shard = 0;
+            } else {
+                ILoggingEvent event = (ILoggingEvent) element;
+                message = appender.encode(event);
+                shard = appender.selectShard(event);
+                oldest[shard] = Math.min(oldest[shard], event.getTimeStamp());
+            }
+            if (isFull(shard) || !fits(shard, message)) {
+                carried.get(shard).add(message);
+            } else {
+                add(shard, message);
+            }
+        } catch (Exception e) {
+        	logger.error(e.getMessage(), e, element);
+        }
+    }
+
+    private boolean push(int shard) {
+        int count = messageIndex[shard];
+        if (logger.isDebugEnabled()) {
+        	logger.debug("Sending " + count + " log messages to Redis at " + appender.getRedisAddress());
+        }
+        byte[][] elements = views.of(batches[shard], count);
+        try {
+
+            long start = System.nanoTime();
+            appender.getSink().push(connection(shard), keys[shard], elements);
+            long nanos = System.nanoTime() - start;
+            sizer.pushed(count, nanos, appender.getEvents().size() >= batchSize);
+
+            eventsPushed += count;
+            appender.recordPush(count, nanos, oldest[shard]);
+            clear(shard);
+            return true;
+
+        } catch (JedisRedirectionException jre) {
+            // the slot moved, retry once the slots are refreshed
+            throw jre;
+        } catch (JedisDataException jde) {
+            // Handling stuff like OOM's on Redis' side
+            if (appender.isPurgeOnFailure() && spill(shard, elements)) {
+                clear(shard);
+                return true;
+            }
+            if (appender.isPurgeOnFailure()) {
+            	logger.error("Can't push events to Redis at " + appender.getRedisAddress() + ": " + jde.getMessage());
+                eventsDroppedInPush += count;
+                batchPurges++;
+                appender.recordDropped(count);
+                clear(shard);
+            }
+            return false;
+        } finally {
+            if (elements != batches[shard]) {
+                views.release(elements);
+            }
+        }
+    }
+
+    /**
+     * Drains the queue like {@link #flushBlocking(boolean)} does, but sends the batches
+     * through Jedis {@link Pipeline}s: up to <code>maxPipelinedBatches</code> batches are
+     * written back-to-back before the replies are read. Batches rejected by Redis are purged
+     * or kept for the next cycle depending on <code>purgeOnFailure</code>, as for
+     * {@link #push(int)}.
+     */
+    private void flushPipelined(boolean pushIncomplete) {
+        List<PendingBatch> sent = new ArrayList<PendingBatch>();
+        try {
+            if (!retryBatches.isEmpty()) {
+                // resend what Redis rejected last time before draining any further
+                pipelineRetries(sent);
+                syncPipelines(sent);
+                if (!retryBatches.isEmpty()) return;
+            }
+
+            // batches filled before the connection broke, which would block draining
+            pipelineFull(sent);
+            int count;
+            while ((count = appender.drain(drained, room())) > 0) {
+                addToBatch(count);
+
+                pipelineFull(sent);
+                if (sent.size() >= appender.getMaxPipelinedBatches()) {
+                    syncPipelines(sent);
+                    // Redis rejected a batch: push it again before any younger event, as flushBlocking does
+                    if (!retryBatches.isEmpty()) return;
+                }
+            }
+
+            if (releaseHeld()) {
+                pipelineFull(sent);
+            }
+
+            if (pushIncomplete) {
+                // push incomplete batches
+                for (int shard = 0; shard < keys.length; shard++) {
+                    while (messageIndex[shard] > 0) pipelineBatch(shard, sent);
+                }
+            }
+
+            syncPipelines(sent);
+        } catch (JedisException je) {
+            // the connection broke with batches in flight: keep them for the next cycle, in order
+            retryBatches.addAll(0, sent);
+            throw je;
+        }
+    }
+
+    private void pipelineFull(List<PendingBatch> sent) {
+        for (int shard = 0; shard < keys.length; shard++) {
+            while (isFull(shard)) pipelineBatch(shard, sent);
+        }
+    }
+
+    private void pipelineBatch(int shard, List<PendingBatch> sent) {
+        if (logger.isDebugEnabled()) {
+        	logger.debug("Pipelining " + messageIndex[shard] + " log messages to Redis at " + appender.getRedisAddress());
+        }
+        byte[][] elements = Arrays.copyOf(batches[shard], messageIndex[shard]);
+        long since = oldest[shard];
+        Response<?> response = appender.getSink().push(pipeline(shard), keys[shard], elements);
+        // only once queued: if the write failed, the events are still in the batch
+        sent.add(new PendingBatch(shard, elements, since, response));
+        clear(shard);
+    }
+
+    /**
+     * Queues the batches to retry, each one moving to <code>sent</code> once queued, so that
+     * a failed write leaves every batch in exactly one of the two lists.
+     */
+    private void pipelineRetries(List<PendingBatch> sent) {
+        while (!retryBatches.isEmpty()) {
+            PendingBatch pb = retryBatches.get(0);
+            sent.add(new PendingBatch(pb.shard, pb.elements, pb.oldest,
+                appender.getSink().push(pipeline(pb.shard), keys[pb.shard], pb.elements)));
+            retryBatches.remove(0);
+        }
+    }
+
+    /**
+     * Queues the batches of this worker on the pipeline of a {@link SharedFlushEngine}: the
+     * ones left from the last cycle, then up to <code>maxPipelinedBatches</code> drained from
+     * the queue, or the whole queue once closing. The engine syncs the pipeline for all its
+     * workers at once, then calls {@link #settle(long)}, or {@link #unstage()} if the
+     * connection broke.
+     *
+     * @return the number of batches queued
+     */
+    int stage(Pipeline pipeline) {
+        batchSize = sizer.get();
+        // every shard goes through the engine's connection
+        Arrays.fill(pipelines, pipeline);
+        try {
+            pipelineRetries(staged);
+            pipelineFull(staged);
+
+            int count;
+            while ((closing || staged.size() < appender.getMaxPipelinedBatches())
+                    && (count = appender.drain(drained, room())) > 0) {
+                addToBatch(count);
+                pipelineFull(staged);
+            }
+
+            if (releaseHeld()) {
+                pipelineFull(staged);
+            }
+
+            if (closing || !appender.isAlwaysBatch()) {
+                for (int shard = 0; shard < keys.length; shard++) {
+                    while (messageIndex[shard] > 0) pipelineBatch(shard, staged);
+                }
+            }
+            return staged.size();
+        } finally {
+            Arrays.fill(pipelines, null);
+        }
+    }
+
+    /**
+     * Accounts for the batches staged on the engine's pipeline once it was synced.
+     *
+     * @param nanos the share of the round-trip of each batch
+     */
+    void settle(long nanos) {
+        settle(staged, nanos);
+    }
+
+    /**
+     * Keeps the staged batches for the next cycle, the engine's connection having broken.
+     */
+    void unstage() {
+        retryBatches.addAll(0, staged);
+        staged.clear();
+    }
+
+    /**
+     * Makes the next cycles of a {@link SharedFlushEngine} push everything, as
+     * {@link #flushRemaining()} does.
+     */
+    void closing() {
+        closing = true;
+    }
+
+    /**
+     * Drains the queue like {@link #flushBlocking(boolean)} does, but hands the batches to the
+     * async transport without waiting for their replies: draining only pauses while the
+     * transport's window is full. The batches answered since the last cycle are accounted
+     * for first, and the ones which failed are sent again before anything else.
+     */
+    private void flushAsync(boolean pushIncomplete) throws InterruptedException {
+        reap();
+        while (!retryBatches.isEmpty()) {
+            if (!sendAsync(retryBatches.get(0))) return;
+            retryBatches.remove(0);
+        }
+
+        int count;
+        while ((count = appender.drain(drained, room())) > 0) {
+            addToBatch(count);
+
+            if (!sendFull()) return;
+        }
+
+        if (releaseHeld() && !sendFull()) return;
+
+        if (pushIncomplete) {
+            for (int shard = 0; shard < keys.length; shard++) {
+                while (messageIndex[shard] > 0) {
+                    if (!sendAsync(shard)) return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if a full batch could not be sent
+     */
+    private boolean sendFull() throws InterruptedException {
+        for (int shard = 0; shard < keys.length; shard++) {
+            while (isFull(shard)) {
+                if (!sendAsync(shard)) return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sendAsync(int shard) throws InterruptedException {
+        PendingBatch pb = new PendingBatch(shard, Arrays.copyOf(batches[shard], messageIndex[shard]), oldest[shard], null);
+        clear(shard);
+        if (sendAsync(pb)) {
+            return true;
+        }
+        retryBatches.add(pb);
+        return false;
+    }
+
+    /**
+     * @return false if the connection is down or the window stayed full, in which case the
+     *         batch wasn't sent
+     */
+    private boolean sendAsync(PendingBatch pb) throws InterruptedException {
+        AsyncRedisClient client = appender.getAsyncClient();
+        if (!client.isConnected()) {
+            // don't drain the queue into batches failing one after the other
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+        	logger.debug("Sending " + pb.elements.length + " log messages to Redis at " + appender.getRedisAddress());
+        }
+        byte[][] command = ((AsyncRedisSink) appender.getSink()).command(keys[pb.shard], pb.elements);
+        return client.send(command, new AsyncBatch(pb));
+    }
+
+    /**
+     * Accounts for the batches answered by Redis since the last call: batches Redis rejected
+     * are spilled or purged as in {@link #push(int)}, the ones lost with the connection are
+     * sent again.
+     */
+    private void reap() {
+        AsyncBatch batch;
+        while ((batch = answered.poll()) != null) {
+            PendingBatch pb = batch.batch;
+            if (batch.error == null) {
+                eventsPushed += pb.elements.length;
+                sizer.pushed(pb.elements.length, batch.nanos, appender.getEvents().size() >= batchSize);
+            } else if (batch.error instanceof JedisDataException) {
+                if (appender.isPurgeOnFailure() && spill(pb.shard, pb.elements)) {
+                    continue;
+                }
+                if (appender.isPurgeOnFailure()) {
+                	logger.error("Can't push events to Redis at " + appender.getRedisAddress() + ": " + batch.error.getMessage());
+                    eventsDroppedInPush += pb.elements.length;
+                    batchPurges++;
+                    appender.recordDropped(pb.elements.length);
+                } else {
+                    retryBatches.add(pb);
+                }
+            } else {
+                retryBatches.add(pb);
+            }
+        }
+    }
+
+    private void syncPipelines(List<PendingBatch> sent) {
+        if (sent.isEmpty()) return;
+        long start = System.nanoTime();
+        for (int shard = 0; shard < pipelines.length; shard++) {
+            if (pipelines[shard] != null && isFirst(pipelines, shard)) pipelines[shard].sync();
+        }
+        // the batches went back-to-back, account for each one's share
+        settle(sent, (System.nanoTime() - start) / sent.size());
+    }
+
+    /**
+     * Accounts for the pipelined batches once their replies were read: batches Redis
+     * rejected are spilled, purged or kept as in {@link #push(int)}.
+     */
+    private void settle(List<PendingBatch> sent, long nanos) {
+        if (sent.isEmpty()) return;
+        int largest = 0;
+        for (PendingBatch pb : sent) {
+            largest = Math.max(largest, pb.elements.length);
+        }
+        sizer.pushed(largest, nanos, appender.getEvents().size() >= batchSize);
+        JedisRedirectionException redirected = null;
+        for (PendingBatch pb : sent) {
+            try {
+                pb.response.get();
+                eventsPushed += pb.elements.length;
+                appender.recordPush(pb.elements.length, nanos, pb.oldest);
+            } catch (JedisRedirectionException jre) {
+                retryBatches.add(pb);
+                redirected = jre;
+            } catch (JedisDataException jde) {
+                // Handling stuff like OOM's on Redis' side
+                if (appender.isPurgeOnFailure() && spill(pb.shard, pb.elements)) {
+                    continue;
+                }
+                if (appender.isPurgeOnFailure()) {
+                	logger.error("Can't push events to Redis at " + appender.getRedisAddress() + ": " + jde.getMessage());
+                    eventsDroppedInPush += pb.elements.length;
+                    batchPurges++;
+                    appender.recordDropped(pb.elements.length);
+                } else {
+                    retryBatches.add(pb);
+                }
+            }
+        }
+        sent.clear();
+        if (redirected != null) {
+            // the slots moved, retry once they are refreshed
+            throw redirected;
+        }
+    }
+
+    /**
+     * Pushes up to <code>spillReplayBatches</code> batches from the spill journal, oldest
+     * first. Only one worker replays at a time.
+     */
+    private void replay() {
+        SpillJournal journal = appender.getJournal();
+        if (journal == null || !journal.tryLockReplay()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < appender.getSpillReplayBatches(); i++) {
+                SpillJournal.Batch batch = journal.peek();
+                if (batch == null) {
+                    return;
+                }
+                // the shard count may have changed since the batch was spilled
+                int shard = batch.shard % keys.length;
+            	logger.debug("Replaying " + batch.events.length + " spilled log messages to Redis at " + appender.getRedisAddress());
+                try {
+                    long start = System.nanoTime();
+                    pushNow(shard, batch.events);
+                    eventsPushed += batch.events.length;
+                    // the age of spilled events says nothing about the current lag
+                    appender.recordPush(batch.events.length, System.nanoTime() - start, Long.MAX_VALUE);
+                } catch (JedisRedirectionException jre) {
+                    throw jre;
+                } catch (JedisDataException jde) {
+                    // already rejected once, don't let it block the journal
+                    if (!appender.isPurgeOnFailure()) {
+                        return;
+                    }
+                	logger.error("Can't push spilled events to Redis at " + appender.getRedisAddress() + ": " + jde.getMessage());
+                    eventsDroppedInPush += batch.events.length;
+                    batchPurges++;
+                    appender.recordDropped(batch.events.length);
+                }
+                journal.advance();
+            }
+        } finally {
+            journal.unlockReplay();
+        }
+    }
+
+    /**
+     * Moves the batches held by this worker, then the whole queue, to the spill journal.
+     * Stops at the first batch the journal refuses, leaving the rest in memory.
+     */
+    private void spillAll() {
+        if (appender.getJournal() == null) {
+            return;
+        }
+        // the batches lost with the async connection go to the journal too
+        reap();
+        while (!retryBatches.isEmpty()) {
+            PendingBatch pb = retryBatches.get(0);
+            if (!spill(pb.shard, pb.elements)) return;
+            retryBatches.remove(0);
+        }
+        releaseHeld();
+        do {
+            for (int shard = 0; shard < keys.length; shard++) {
+                while (messageIndex[shard] > 0) {
+                    if (!spill(shard, Arrays.copyOf(batches[shard], messageIndex[shard]))) return;
+                    clear(shard);
+                }
+            }
+        } while (drainAndAdd() > 0);
+    }
+
+    /**
+     * Syncs what this worker and the logging threads spilled, so that the latter never wait
+     * for the disk.
+     */
+    private void syncJournal() {
+        SpillJournal journal = appender.getJournal();
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    private int drainAndAdd() {
+        int count = appender.drain(drained, room());
+        addToBatch(count);
+        return count;
+    }
+
+    private boolean spill(int shard, byte[][] elements) {
+        SpillJournal journal = appender.getJournal();
+        if (journal == null || !journal.append(shard, elements)) {
+            return false;
+        }
+    	logger.debug("Spilled " + elements.length + " log messages to disk");
+        return true;
+    }
+
+    /**
+     * Pushes a batch and waits for the reply, through the async transport if there's one.
+     */
+    private void pushNow(int shard, byte[][] events) {
+        AsyncRedisClient client = appender.getAsyncClient();
+        if (client != null) {
+            client.execute(((AsyncRedisSink) appender.getSink()).command(keys[shard], events));
+        } else {
+            appender.getSink().push(connection(shard), keys[shard], events);
+        }
+    }
+
+    private Jedis connection(int shard) {
+        Jedis connection = connections[shard];
+        if (connection == null) {
+            connection = appender.acquireConnection(keys[shard]);
+            if (connection == null) {
+                throw new JedisConnectionException("Can't connect to Redis at " + appender.getRedisAddress());
+            }
+            if (appender.isCluster()) {
+                connections[shard] = connection;
+            } else {
+                Arrays.fill(connections, connection);
+            }
+        }
+        return connection;
+    }
+
+    private Pipeline pipeline(int shard) {
+        Pipeline pipeline = pipelines[shard];
+        if (pipeline == null) {
+            Jedis connection = connection(shard);
+            // shards sharing a connection must share its pipeline too
+            for (int i = 0; i < connections.length && pipeline == null; i++) {
+                if (connections[i] == connection) pipeline = pipelines[i];
+            }
+            if (pipeline == null) pipeline = connection.pipelined();
+            pipelines[shard] = pipeline;
+        }
+        return pipeline;
+    }
+
+    private void releaseConnections(boolean broken) {
+        for (int shard = 0; shard < connections.length; shard++) {
+            if (connections[shard] != null && isFirst(connections, shard)) {
+                appender.releaseConnection(connections[shard], broken);
+            }
+        }
+        Arrays.fill(connections, null);
+        Arrays.fill(pipelines, null);
+    }
+
+    /**
+     * @return whether <code>objects[index]</code> does not appear at a lower index
+     */
+    private static boolean isFirst(Object[] objects, int index) {
+        for (int i = 0; i < index; i++) {
+            if (objects[i] == objects[index]) return false;
+        }
+        return true;
+    }
+
+    private static class PendingBatch {
+        final int shard;
+        final byte[][] elements;
+        final long oldest;
+        final Response<?> response;
+
+        PendingBatch(int shard, byte[][] elements, long oldest, Response<?> response) {
+            this.shard = shard;
+            this.elements = elements;
+            this.oldest = oldest;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Completes a batch sent through the async transport, on its event loop thread. The
+     * worker accounts for it on its next cycle.
+     */
+    private final class AsyncBatch implements AsyncRedisClient.Callback {
+        final PendingBatch batch;
+        final long start = System.nanoTime();
+        long nanos;
+        JedisException error;
+
+        AsyncBatch(PendingBatch batch) {
+            this.batch = batch;
+        }
+
+        public void completed(long reply) {
+            nanos = System.nanoTime() - start;
+            appender.recordPush(batch.elements.length, nanos, batch.oldest);
+            answered.add(this);
+        }
+
+        public void failed(JedisException e) {
+            error = e;
+            answered.add(this);
+        }
+    }
+
+    long getEventsDroppedInPush() { return eventsDroppedInPush; }
+    int getBatchPurges() { return batchPurges; }
+    long getEventsPushed() { return eventsPushed; }
+    long getEventsCollapsed() { return eventsCollapsed; }
+
+}
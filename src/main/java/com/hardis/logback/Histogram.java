@@ -0,0 +1,91 @@
+package com.hardis.logback;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non negative long values over log-linear buckets, as HdrHistogram lays
+ * them out: values below 64 each have their own bucket, larger ones fall in 32 buckets per
+ * power of two, so a value is reported within about 3% of what was recorded. Recording is a
+ * single atomic add and allocates nothing. Safe for concurrent use.
+ * <p>
+ * The values are kept over a rolling window: {@link #rotate()} starts a new interval and
+ * forgets the one before the last, so a snapshot covers between one and two intervals.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // highest bucket: the top bit of Long.MAX_VALUE is bit 62
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    // slot holding the sum of the recorded values, after the buckets
+    private static final int SUM = BUCKETS;
+
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS + 1);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS + 1);
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value falling in the bucket <code>index</code>
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    void record(long value) {
+        AtomicLongArray counts = current;
+        counts.getAndIncrement(index(value));
+        counts.getAndAdd(SUM, Math.max(0, value));
+    }
+
+    /**
+     * Starts a new interval. Values recorded while rotating may land in the previous one.
+     */
+    synchronized void rotate() {
+        previous = current;
+        current = new AtomicLongArray(BUCKETS + 1);
+    }
+
+    MetricsSnapshot.Distribution snapshot() {
+        AtomicLongArray last = previous;
+        AtomicLongArray counts = current;
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] = last.get(i) + counts.get(i);
+            count += merged[i];
+        }
+        long sum = last.get(SUM) + counts.get(SUM);
+        return new MetricsSnapshot.Distribution(count, count == 0 ? 0 : (double) sum / count,
+            percentile(merged, count, 0.5), percentile(merged, count, 0.9),
+            percentile(merged, count, 0.99), percentile(merged, count, 0.999),
+            percentile(merged, count, 1));
+    }
+
+    private static long percentile(long[] counts, long count, double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+
+}
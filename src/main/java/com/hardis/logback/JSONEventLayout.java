@@ -2,17 +2,12 @@ package com.hardis.logback;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.LayoutBase;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Adapt from XMLLayout
@@ -22,18 +17,35 @@ import java.util.regex.Pattern;
  */
 public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
-	private final static int DEFAULT_SIZE = 256;
-	private final static int UPPER_LIMIT = 2048;
-	private final static char DBL_QUOTE = '"';
-	private final static char COMMA = ',';
-
-	private StringBuilder buf = new StringBuilder(DEFAULT_SIZE);
-	private DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
-	private Pattern MDC_VAR_PATTERN = Pattern.compile("\\@\\{([^}^:-]*)(:-([^}]*)?)?\\}");
+	private final static int DEFAULT_SIZE = 1024;
+	private final static int UPPER_LIMIT = 65536;
+	private final static byte DBL_QUOTE = '"';
+	private final static byte COMMA = ',';
+	private final static byte COLON = ':';
+	private final static byte CLOSE_BRACE = '}';
+	private final static byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+	// working state is confined to the calling thread, so events can be laid out
+	// concurrently by the appending threads (see RedisAppender#setSerializeOnAppend)
+	private final ThreadLocal<JsonBuffer> buffers = new ThreadLocal<JsonBuffer>() {
+		@Override
+		protected JsonBuffer initialValue() {
+			return new JsonBuffer(DEFAULT_SIZE);
+		}
+	};
+	// compiled at start(), or on first use, and dropped whenever the configuration changes
+	private volatile Templates templates;
 
 	private boolean locationInfo = false;
 	private int callerStackIdx = 0;
 	private boolean properties = false;
+	private String timestampFormat = TimestampFormatter.LEGACY;
+	private volatile TimestampFormatter timestampFormatter = new TimestampFormatter(timestampFormat);
+	private int maxStackFrames = 0;
+	private int maxCauseDepth = 0;
+	private boolean omitCommonFrames = true;
+	private int throwableCacheSize = 256;
+	private volatile ThrowableFormatter throwableFormatter;
 
 	String source;
 	String sourceHost;
@@ -52,6 +64,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	@Override
 	public void start() {
+		compile();
 		super.start();
 	}
 
@@ -99,69 +112,169 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 		return properties;
 	}
 
+	/**
+	 * Sets how <code>@timestamp</code> is written: <code>legacy</code> (default,
+	 * <code>yyyy-MM-dd'T'HH:mm:ss.SZ</code> in the local time zone),
+	 * <code>iso8601</code> (<code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code> in UTC) or
+	 * <code>epochMillis</code> (a JSON number).
+	 */
+	public void setTimestampFormat(String timestampFormat) {
+		this.timestampFormatter = new TimestampFormatter(timestampFormat);
+		this.timestampFormat = timestampFormat;
+	}
+
+	public String getTimestampFormat() {
+		return timestampFormat;
+	}
+
+	/**
+	 * Maximum number of stack frames written per throwable, 0 (default) for no limit. The
+	 * remaining frames are replaced by a "... n frames truncated" line.
+	 */
+	public void setMaxStackFrames(int maxStackFrames) {
+		this.maxStackFrames = maxStackFrames;
+		throwableFormatter = null;
+	}
+
+	public int getMaxStackFrames() {
+		return maxStackFrames;
+	}
+
+	/**
+	 * Maximum number of nested causes and suppressed throwables written below the logged
+	 * one, 0 (default) for no limit.
+	 */
+	public void setMaxCauseDepth(int maxCauseDepth) {
+		this.maxCauseDepth = maxCauseDepth;
+		throwableFormatter = null;
+	}
+
+	public int getMaxCauseDepth() {
+		return maxCauseDepth;
+	}
+
+	/**
+	 * Whether the frames a cause shares with its enclosing throwable are replaced by
+	 * "... n common frames omitted", default true.
+	 */
+	public void setOmitCommonFrames(boolean omitCommonFrames) {
+		this.omitCommonFrames = omitCommonFrames;
+		throwableFormatter = null;
+	}
+
+	public boolean getOmitCommonFrames() {
+		return omitCommonFrames;
+	}
+
+	/**
+	 * Number of distinct stack traces kept serialized, so that a throwable logged over and
+	 * over is only formatted once. Default 256, 0 disables the cache.
+	 */
+	public void setThrowableCacheSize(int throwableCacheSize) {
+		this.throwableCacheSize = throwableCacheSize;
+		throwableFormatter = null;
+	}
+
+	public int getThrowableCacheSize() {
+		return throwableCacheSize;
+	}
+
 	/**
 	 * Formats a {@link ILoggingEvent} in conformity with the log4j.dtd.
 	 */
-	public synchronized String doLayout(ILoggingEvent event) {
+	public String doLayout(ILoggingEvent event) {
+		JsonBuffer buf = buffer();
+		writeTo(event, buf);
+		return buf.toString();
+	}
 
+	/**
+	 * Same as {@link #doLayout(ILoggingEvent)}, but returns the UTF-8 bytes without going
+	 * through a String.
+	 */
+	public byte[] encode(ILoggingEvent event) {
+		JsonBuffer buf = buffer();
+		writeTo(event, buf);
+		return buf.toByteArray();
+	}
+
+	private JsonBuffer buffer() {
 		// Reset working buffer. If the buffer is too large, then we need a new
-		// one in order to avoid the penalty of creating a large array.
-		if (buf.capacity() > UPPER_LIMIT) {
-			buf = new StringBuilder(DEFAULT_SIZE);
-		} else {
-			buf.setLength(0);
+		// one in order to avoid the penalty of retaining a large array.
+		JsonBuffer buf = buffers.get();
+		buf.reset(UPPER_LIMIT, DEFAULT_SIZE);
+		return buf;
+	}
+
+	/**
+	 * Appends the JSON form of the event, UTF-8 encoded, to <code>buf</code>.
+	 */
+	public void writeTo(ILoggingEvent event, JsonBuffer buf) {
+		Templates t = templates;
+		if (t == null) {
+			t = compile();
 		}
 
 		Map<String, String> mdc = event.getMDCPropertyMap();
-		buf.append("{");
-		appendKeyValue(buf, "source", source, mdc);
-		buf.append(COMMA);
-		appendKeyValue(buf, "host", sourceHost, mdc);
-		buf.append(COMMA);
-		appendKeyValue(buf, "path", sourcePath, mdc);
-		buf.append(COMMA);
-		appendKeyValue(buf, "type", type, mdc);
-		buf.append(COMMA);
-		appendKeyValue(buf, "tags", tags, mdc);
-		buf.append(COMMA);
-		appendKeyValue(buf, "message", event.getFormattedMessage(), null);
-		buf.append(COMMA);
-		appendKeyValue(buf, "@timestamp",
-				df.format(new Date(event.getTimeStamp())), null);
-		buf.append(COMMA);
+		// {"source":...,"tags":[...],"message":
+		t.header.writeTo(buf, mdc);
+		appendValue(buf, event.getFormattedMessage());
+		buf.write(COMMA);
+		appendKey(buf, "@timestamp");
+		timestampFormatter.writeTo(buf, event.getTimeStamp());
+		buf.write(COMMA);
 
 		// ---- fields ----
-		appendKeyValue(buf, "logger", event.getLoggerName(), null);
-		buf.append(COMMA);
-		appendKeyValue(buf, "level", event.getLevel().toString(), null);
-		buf.append(COMMA);
-		appendKeyValue(buf, "thread", event.getThreadName(), null);
+		appendKeyValue(buf, "logger", event.getLoggerName());
+		buf.write(COMMA);
+		appendKeyValue(buf, "level", event.getLevel().toString());
+		buf.write(COMMA);
+		appendKeyValue(buf, "thread", event.getThreadName());
+		if (event instanceof RepeatedEvent) {
+			RepeatedEvent repeated = (RepeatedEvent) event;
+			buf.write(COMMA);
+			appendKey(buf, RepeatedEvent.REPEAT_COUNT);
+			buf.writeLong(repeated.getRepeatCount());
+			buf.write(COMMA);
+			appendKey(buf, RepeatedEvent.FIRST_TIMESTAMP);
+			timestampFormatter.writeTo(buf, repeated.getFirstTimestamp());
+			buf.write(COMMA);
+			appendKey(buf, RepeatedEvent.LAST_TIMESTAMP);
+			timestampFormatter.writeTo(buf, repeated.getLastTimestamp());
+		}
 		IThrowableProxy tp = event.getThrowableProxy();
 		if (tp != null) {
-			buf.append(COMMA);
-			String throwable = ThrowableProxyUtil.asString(tp);
-			appendKeyValue(buf, "throwable", throwable, null);
+			ThrowableFormatter f = throwableFormatter;
+			if (f == null) {
+				f = new ThrowableFormatter(maxStackFrames, maxCauseDepth, omitCommonFrames, throwableCacheSize);
+				throwableFormatter = f;
+			}
+			buf.write(COMMA);
+			appendKey(buf, "throwable");
+			buf.write(DBL_QUOTE);
+			f.writeTo(buf, tp);
+			buf.write(DBL_QUOTE);
 		}
 		if (locationInfo) {
 			StackTraceElement[] callerDataArray = event.getCallerData();
 			if (callerDataArray != null
 					&& callerDataArray.length > callerStackIdx) {
-				buf.append(COMMA);
-				buf.append("\"location\":{");
+				buf.write(COMMA);
+				buf.writeAscii("\"location\":{");
 				StackTraceElement immediateCallerData = callerDataArray[callerStackIdx];
 				appendKeyValue(buf, "class",
-						immediateCallerData.getClassName(), null);
-				buf.append(COMMA);
+						immediateCallerData.getClassName());
+				buf.write(COMMA);
 				appendKeyValue(buf, "method",
-						immediateCallerData.getMethodName(), null);
-				buf.append(COMMA);
-				appendKeyValue(buf, "file", immediateCallerData.getFileName(),
-						null);
-				buf.append(COMMA);
-				appendKeyValue(buf, "line",
-						Integer.toString(immediateCallerData.getLineNumber()),
-						null);
-				buf.append("}");
+						immediateCallerData.getMethodName());
+				buf.write(COMMA);
+				appendKeyValue(buf, "file", immediateCallerData.getFileName());
+				buf.write(COMMA);
+				appendKey(buf, "line");
+				buf.write(DBL_QUOTE);
+				buf.writeLong(immediateCallerData.getLineNumber());
+				buf.write(DBL_QUOTE);
+				buf.write(CLOSE_BRACE);
 			}
 		}
 
@@ -170,139 +283,112 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 		 * </log4j:properties>
 		 */
 		if (properties) {
-			Map<String, String> propertyMap = event.getMDCPropertyMap();
+			// the repeat entries were written as fields above
+			Map<String, String> propertyMap = event instanceof RepeatedEvent
+					? ((RepeatedEvent) event).getFirstEvent().getMDCPropertyMap() : mdc;
 			if ((propertyMap != null) && (propertyMap.size() != 0)) {
 				Set<Entry<String, String>> entrySet = propertyMap.entrySet();
-				buf.append(COMMA);
-				buf.append("\"properties\":{");
+				buf.write(COMMA);
+				buf.writeAscii("\"properties\":{");
 				Iterator<Entry<String, String>> i = entrySet.iterator();
 				while (i.hasNext()) {
 					Entry<String, String> entry = i.next();
-					appendKeyValue(buf, entry.getKey(), entry.getValue(), null);
+					appendKeyValue(buf, entry.getKey(), entry.getValue());
 					if (i.hasNext()) {
-						buf.append(COMMA);
+						buf.write(COMMA);
 					}
 				}
-				buf.append("}");
+				buf.write(CLOSE_BRACE);
 			}
 		}
 
-		if(additionalFields != null) {
-			for(AdditionalField field : additionalFields) {
-				buf.append(COMMA);
-				appendKeyValue(buf, field.getKey(), field.getValue(), mdc);
-			}
-		}
-
-		buf.append("}");
-
-		return buf.toString();
+		// ,"key":"value"... for the additional fields, then }
+		t.trailer.writeTo(buf, mdc);
 	}
 
-	private void appendKeyValue(StringBuilder buf, String key, String value,
-			Map<String, String> mdc) {
-		if (value != null) {
-			buf.append(DBL_QUOTE);
-			buf.append(escape(key));
-			buf.append(DBL_QUOTE);
-			buf.append(':');
-			buf.append(DBL_QUOTE);
-			buf.append(escape(mdcSubst(value, mdc)));
-			buf.append(DBL_QUOTE);
-		} else {
-			buf.append(DBL_QUOTE);
-			buf.append(escape(key));
-			buf.append(DBL_QUOTE);
-			buf.append(':');
-			buf.append("null");
+	/**
+	 * Compiled form of the fields whose values come from the configuration, possibly
+	 * with <code>@{key:-default}</code> MDC references.
+	 */
+	private static final class Templates {
+		final JsonTemplate header;
+		final JsonTemplate trailer;
+
+		Templates(JsonTemplate header, JsonTemplate trailer) {
+			this.header = header;
+			this.trailer = trailer;
 		}
 	}
 
-	private void appendKeyValue(StringBuilder buf, String key,
-			List<String> values, Map<String, String> mdc) {
-		buf.append(DBL_QUOTE);
-		buf.append(escape(key));
-		buf.append(DBL_QUOTE);
-		buf.append(':');
-		buf.append('[');
-		if (values != null) {
-			Iterator<String> i = values.iterator();
+	private Templates compile() {
+		JsonTemplate.Builder header = new JsonTemplate.Builder();
+		header.raw("{");
+		compileKeyValue(header, "source", source);
+		header.raw(",");
+		compileKeyValue(header, "host", sourceHost);
+		header.raw(",");
+		compileKeyValue(header, "path", sourcePath);
+		header.raw(",");
+		compileKeyValue(header, "type", type);
+		header.raw(",\"tags\":[");
+		if (tags != null) {
+			Iterator<String> i = tags.iterator();
 			while (i.hasNext()) {
-				String v = i.next();
-				buf.append(DBL_QUOTE);
-				buf.append(escape(mdcSubst(v, mdc)));
-				buf.append(DBL_QUOTE);
+				compileValue(header, i.next());
 				if (i.hasNext()) {
-					buf.append(',');
+					header.raw(",");
 				}
 			}
 		}
-		buf.append(']');
-	}
-
-	private String mdcSubst(String v, Map<String, String> mdc) {
-		if (mdc != null && v != null && v.contains("@{")) {
-			Matcher m = MDC_VAR_PATTERN.matcher(v);
-			StringBuffer sb = new StringBuffer(v.length());
-			while (m.find()) {
-				String val = mdc.get(m.group(1));
-				if (val == null) {
-					// If a default value exists, use it
-					val = (m.group(3) != null) ? val = m.group(3) : m.group(1) + "_NOT_FOUND";
-				}
-				m.appendReplacement(sb, Matcher.quoteReplacement(val));
+		header.raw("],\"message\":");
+
+		JsonTemplate.Builder trailer = new JsonTemplate.Builder();
+		if (additionalFields != null) {
+			for (AdditionalField field : additionalFields) {
+				trailer.raw(",");
+				compileKeyValue(trailer, field.getKey(), field.getValue());
 			}
-			m.appendTail(sb);
-			return sb.toString();
 		}
-		return v;
-	}
-
-	private String escape(String s) {
-		if (s == null)
-			return null;
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < s.length(); i++) {
-			char ch = s.charAt(i);
-			switch (ch) {
-			case '"':
-				sb.append("\\\"");
-				break;
-			case '\\':
-				sb.append("\\\\");
-				break;
-			case '\b':
-				sb.append("\\b");
-				break;
-			case '\f':
-				sb.append("\\f");
-				break;
-			case '\n':
-				sb.append("\\n");
-				break;
-			case '\r':
-				sb.append("\\r");
-				break;
-			case '\t':
-				sb.append("\\t");
-				break;
-			case '/':
-				sb.append("\\/");
-				break;
-			default:
-				if (ch >= '\u0000' && ch <= '\u001F') {
-					String ss = Integer.toHexString(ch);
-					sb.append("\\u");
-					for (int k = 0; k < 4 - ss.length(); k++) {
-						sb.append('0');
-					}
-					sb.append(ss.toUpperCase());
-				} else {
-					sb.append(ch);
-				}
-			}
-		}// for
-		return sb.toString();
+		trailer.raw("}");
+
+		Templates t = new Templates(header.build(), trailer.build());
+		templates = t;
+		return t;
+	}
+
+	private void compileKeyValue(JsonTemplate.Builder builder, String key, String value) {
+		builder.raw("\"").escaped(key).raw("\":");
+		compileValue(builder, value);
+	}
+
+	private void compileValue(JsonTemplate.Builder builder, String value) {
+		if (value != null) {
+			builder.raw("\"").value(value).raw("\"");
+		} else {
+			builder.raw("null");
+		}
+	}
+
+	private void appendKey(JsonBuffer buf, String key) {
+		buf.write(DBL_QUOTE);
+		buf.writeEscaped(key);
+		buf.write(DBL_QUOTE);
+		buf.write(COLON);
+	}
+
+	private void appendValue(JsonBuffer buf, String value) {
+		if (value != null) {
+			buf.write(DBL_QUOTE);
+			buf.writeEscaped(value);
+			buf.write(DBL_QUOTE);
+		} else {
+			buf.write(NULL);
+		}
+	}
+
+	private void appendKeyValue(JsonBuffer buf, String key, String value) {
+		appendKey(buf, key);
+		appendValue(buf, value);
 	}
 
 	@Override
@@ -316,6 +402,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	public void setSource(String source) {
 		this.source = source;
+		templates = null;
 	}
 
 	public String getSourceHost() {
@@ -324,6 +411,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	public void setSourceHost(String sourceHost) {
 		this.sourceHost = sourceHost;
+		templates = null;
 	}
 
 	public String getSourcePath() {
@@ -332,6 +420,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	public void setSourcePath(String sourcePath) {
 		this.sourcePath = sourcePath;
+		templates = null;
 	}
 
 	public List<String> getTags() {
@@ -340,6 +429,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	public void setTags(List<String> tags) {
 		this.tags = tags;
+		templates = null;
 	}
 
 	public String getType() {
@@ -348,6 +438,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 
 	public void setType(String type) {
 		this.type = type;
+		templates = null;
 	}
 
 	public int getCallerStackIdx() {
@@ -371,6 +462,7 @@ public class JSONEventLayout extends LayoutBase<ILoggingEvent> {
 			additionalFields = new ArrayList<AdditionalField>();
 		}
 		additionalFields.add(p);
+		templates = null;
 	}
 
 }
@@ -0,0 +1,267 @@
+package com.hardis.logback;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that JSON is written into as UTF-8, escaping string values on the fly
+ * so that no intermediate String or StringBuilder is needed.
+ * <p>
+ * Not thread-safe: use one buffer per thread, or per flush.
+ */
+public final class JsonBuffer {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	private static final byte[] MIN_LONG = "-9223372036854775808".getBytes(UTF_8);
+
+	private byte[] buf;
+	private int count;
+
+	public JsonBuffer() {
+		this(256);
+	}
+
+	public JsonBuffer(int initialCapacity) {
+		buf = new byte[initialCapacity];
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Empties the buffer, and drops its backing array if an unusually large event made it grow
+	 * beyond <code>upperLimit</code>, so that one big event doesn't pin a big array forever.
+	 */
+	public void reset(int upperLimit, int defaultCapacity) {
+		if (buf.length > upperLimit) {
+			buf = new byte[defaultCapacity];
+		}
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the backing array, valid up to {@link #size()}
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, count, UTF_8);
+	}
+
+	private void ensureCapacity(int extra) {
+		grow((long) count + extra);
+	}
+
+	private void grow(long needed) {
+		if (needed > buf.length) {
+			if (needed > Integer.MAX_VALUE - 8) {
+				throw new OutOfMemoryError("JSON buffer over 2 GB");
+			}
+			buf = Arrays.copyOf(buf, (int) Math.max(needed, Math.min((long) buf.length << 1, Integer.MAX_VALUE - 8)));
+		}
+	}
+
+	/**
+	 * Grows the buffer for the chars left to write, at one byte each as for plain ASCII,
+	 * plus the longest sequence a single char can produce. Reserving the worst case upfront
+	 * would make any medium-sized string outgrow the reset limit of the buffer.
+	 *
+	 * @param c the position the caller wrote up to
+	 * @return the backing array, with room for at least <code>maxPerChar</code> bytes at <code>c</code>
+	 */
+	private byte[] room(int c, int charsLeft, int maxPerChar) {
+		count = c;
+		grow((long) c + charsLeft + maxPerChar);
+		return buf;
+	}
+
+	public void write(byte b) {
+		ensureCapacity(1);
+		buf[count++] = b;
+	}
+
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes a string known to be plain ASCII, without escaping.
+	 */
+	public void writeAscii(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+
+	public void writeLong(long v) {
+		if (v == Long.MIN_VALUE) {
+			write(MIN_LONG);
+			return;
+		}
+		ensureCapacity(20);
+		if (v < 0) {
+			buf[count++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long t = v / 10; t != 0; t /= 10) {
+			digits++;
+		}
+		int pos = count + digits;
+		count = pos;
+		do {
+			buf[--pos] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+	}
+
+	/**
+	 * Writes <code>s</code> JSON-escaped and UTF-8 encoded, without the surrounding quotes.
+	 */
+	public void writeEscaped(CharSequence s) {
+		writeEscaped(s, 0, s.length());
+	}
+
+	public void writeEscaped(CharSequence s, int start, int end) {
+		byte[] b = room(count, end - start, 6);
+		int c = count;
+		for (int i = start; i < end; i++) {
+			// a char takes at most 6 bytes (\\uXXXX), a surrogate pair 4
+			if (b.length - c < 6) {
+				b = room(c, end - i, 6);
+			}
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				switch (ch) {
+				case '"':
+					b[c++] = '\\';
+					b[c++] = '"';
+					break;
+				case '\\':
+					b[c++] = '\\';
+					b[c++] = '\\';
+					break;
+				case '\b':
+					b[c++] = '\\';
+					b[c++] = 'b';
+					break;
+				case '\f':
+					b[c++] = '\\';
+					b[c++] = 'f';
+					break;
+				case '\n':
+					b[c++] = '\\';
+					b[c++] = 'n';
+					break;
+				case '\r':
+					b[c++] = '\\';
+					b[c++] = 'r';
+					break;
+				case '\t':
+					b[c++] = '\\';
+					b[c++] = 't';
+					break;
+				case '/':
+					b[c++] = '\\';
+					b[c++] = '/';
+					break;
+				default:
+					if (ch <= '\u001F') {
+						b[c++] = '\\';
+						b[c++] = 'u';
+						b[c++] = '0';
+						b[c++] = '0';
+						b[c++] = HEX[ch >> 4];
+						b[c++] = HEX[ch & 0xF];
+					} else {
+						b[c++] = (byte) ch;
+					}
+				}
+			} else if (ch < 0x800) {
+				b[c++] = (byte) (0xC0 | (ch >> 6));
+				b[c++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+				char low;
+				if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(low = s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(ch, low);
+					b[c++] = (byte) (0xF0 | (cp >> 18));
+					b[c++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[c++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[c++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else {
+					// malformed, same replacement as String.getBytes
+					b[c++] = '?';
+				}
+			} else {
+				b[c++] = (byte) (0xE0 | (ch >> 12));
+				b[c++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				b[c++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+		count = c;
+	}
+
+	/**
+	 * Writes <code>s</code> UTF-8 encoded as is, like <code>String.getBytes</code> without the
+	 * intermediate array.
+	 */
+	public void writeUtf8(CharSequence s) {
+		int end = s.length();
+		byte[] b = room(count, end, 4);
+		int c = count;
+		for (int i = 0; i < end; i++) {
+			// a char takes at most 3 bytes, a surrogate pair 4
+			if (b.length - c < 4) {
+				b = room(c, end - i, 4);
+			}
+			char ch = s.charAt(i);
+			if (ch < 0x80) {
+				b[c++] = (byte) ch;
+			} else if (ch < 0x800) {
+				b[c++] = (byte) (0xC0 | (ch >> 6));
+				b[c++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+				char low;
+				if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(low = s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(ch, low);
+					b[c++] = (byte) (0xF0 | (cp >> 18));
+					b[c++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[c++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[c++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else {
+					b[c++] = '?';
+				}
+			} else {
+				b[c++] = (byte) (0xE0 | (ch >> 12));
+				b[c++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				b[c++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+		count = c;
+	}
+
+}
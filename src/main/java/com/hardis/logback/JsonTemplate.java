@@ -0,0 +1,144 @@
+package com.hardis.logback;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-compiled piece of JSON output made of constant byte fragments, already escaped, and
+ * <code>@{key:-default}</code> references resolved against the MDC of each event.
+ * <p>
+ * References follow the syntax of {@link JSONEventLayout}'s former MDC_VAR_PATTERN: a
+ * missing key with no default is written as <code>key_NOT_FOUND</code>. Immutable, hence
+ * safe to share between threads.
+ */
+final class JsonTemplate {
+
+	private static final String NOT_FOUND = "_NOT_FOUND";
+
+	// either byte[] (constant) or Lookup
+	private final Object[] segments;
+
+	private JsonTemplate(Object[] segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * @param mdc the event's MDC, or null to write references literally
+	 */
+	void writeTo(JsonBuffer buf, Map<String, String> mdc) {
+		for (Object segment : segments) {
+			if (segment instanceof byte[]) {
+				buf.write((byte[]) segment);
+			} else {
+				Lookup lookup = (Lookup) segment;
+				String value = mdc == null ? null : mdc.get(lookup.key);
+				if (value != null) {
+					buf.writeEscaped(value);
+				} else {
+					buf.write(mdc == null ? lookup.raw : lookup.fallback);
+				}
+			}
+		}
+	}
+
+	private static final class Lookup {
+		final String key;
+		// escaped bytes to write when the key is not in the MDC
+		final byte[] fallback;
+		// escaped bytes of the reference itself
+		final byte[] raw;
+
+		Lookup(String key, byte[] fallback, byte[] raw) {
+			this.key = key;
+			this.fallback = fallback;
+			this.raw = raw;
+		}
+	}
+
+	static class Builder {
+
+		private final List<Object> segments = new ArrayList<Object>();
+		private final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+		private final JsonBuffer scratch = new JsonBuffer();
+
+		/**
+		 * Appends JSON syntax (quotes, braces, keys known not to need escaping) as is.
+		 */
+		Builder raw(String json) {
+			byte[] b = json.getBytes(JsonBuffer.UTF_8);
+			literal.write(b, 0, b.length);
+			return this;
+		}
+
+		/**
+		 * Appends a constant string, escaped.
+		 */
+		Builder escaped(String s) {
+			byte[] b = escape(s);
+			literal.write(b, 0, b.length);
+			return this;
+		}
+
+		/**
+		 * Appends a string value, escaped, with its <code>@{key:-default}</code> references
+		 * resolved per event.
+		 */
+		Builder value(String v) {
+			int n = v.length();
+			int literalStart = 0;
+			int i = 0;
+			int at;
+			while ((at = v.indexOf("@{", i)) >= 0) {
+				int j = at + 2;
+				while (j < n && "}^:-".indexOf(v.charAt(j)) < 0) {
+					j++;
+				}
+				String key = v.substring(at + 2, j);
+				String defaultValue = null;
+				int end = -1;
+				if (j < n && v.charAt(j) == '}') {
+					end = j + 1;
+				} else if (j + 1 < n && v.charAt(j) == ':' && v.charAt(j + 1) == '-') {
+					int close = v.indexOf('}', j + 2);
+					if (close >= 0) {
+						defaultValue = v.substring(j + 2, close);
+						end = close + 1;
+					}
+				}
+				if (end < 0) {
+					// not a reference, keep scanning from the next char
+					i = at + 1;
+					continue;
+				}
+				escaped(v.substring(literalStart, at));
+				flushLiteral();
+				segments.add(new Lookup(key, escape(defaultValue != null ? defaultValue : key + NOT_FOUND),
+						escape(v.substring(at, end))));
+				literalStart = i = end;
+			}
+			escaped(v.substring(literalStart));
+			return this;
+		}
+
+		JsonTemplate build() {
+			flushLiteral();
+			return new JsonTemplate(segments.toArray());
+		}
+
+		private void flushLiteral() {
+			if (literal.size() > 0) {
+				segments.add(literal.toByteArray());
+				literal.reset();
+			}
+		}
+
+		private byte[] escape(String s) {
+			scratch.reset();
+			scratch.writeEscaped(s);
+			return scratch.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.hardis.logback;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+
+/**
+ * Appends each event as an element of a Redis list, with one RPUSH per batch.
+ */
+public class ListSink implements AsyncRedisSink {
+
+    public void push(Jedis jedis, byte[] key, byte[][] events) {
+        jedis.rpush(key, events);
+    }
+
+    public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+        return pipeline.rpush(key, events);
+    }
+
+    public byte[][] command(byte[] key, byte[][] events) {
+        byte[][] command = new byte[events.length + 2][];
+        command[0] = Protocol.Command.RPUSH.raw;
+        command[1] = key;
+        System.arraycopy(events, 0, command, 2, events.length);
+        return command;
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.hardis.logback;
+
+/**
+ * Counts events and keeps their exponentially weighted moving average rates over 1, 5 and
+ * 15 minutes, as the Unix load average does.
+ * <p>
+ * Marking only adds to a {@link StripedCounter}; the rates move when {@link #tick()} is
+ * called, which should happen every {@link #TICK_SECONDS} seconds.
+ */
+final class Meter {
+
+    static final int TICK_SECONDS = 5;
+
+    private static final double[] ALPHAS = {
+        1 - Math.exp(-TICK_SECONDS / 60.0),
+        1 - Math.exp(-TICK_SECONDS / 300.0),
+        1 - Math.exp(-TICK_SECONDS / 900.0)
+    };
+
+    private final StripedCounter count = new StripedCounter();
+    // events per second, guarded by this
+    private final double[] rates = new double[ALPHAS.length];
+    private boolean initialized = false;
+    private long lastCount = 0;
+
+    void mark() {
+        count.add(1);
+    }
+
+    void mark(long n) {
+        count.add(n);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    synchronized void tick() {
+        long total = count.sum();
+        double rate = (double) (total - lastCount) / TICK_SECONDS;
+        lastCount = total;
+        for (int i = 0; i < rates.length; i++) {
+            // the first interval seeds the averages
+            rates[i] = initialized ? rates[i] + ALPHAS[i] * (rate - rates[i]) : rate;
+        }
+        initialized = true;
+    }
+
+    /**
+     * @return the events per second over 1, 5 and 15 minutes
+     */
+    synchronized double[] getRates() {
+        return rates.clone();
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.hardis.logback;
+
+/**
+ * The metrics of a {@link RedisAppender} at one point in time, as returned by
+ * {@link RedisAppender#getMetrics()}. The counters are totals since the appender was
+ * created, the rates are events per second averaged over 1, 5 and 15 minutes, and the
+ * distributions cover the last one to two minutes.
+ */
+public final class MetricsSnapshot {
+
+    // set by the appender before the snapshot is handed out
+    long timestamp;
+    long eventCount;
+    long eventsDroppedInQueueing;
+    long eventsDroppedInPush;
+    long eventsShed;
+    long eventsSampled;
+    long eventsRateLimited;
+    long eventsCollapsed;
+    long eventsPushed;
+    int eventQueueSize;
+    long queuedBytes;
+    double[] eventRates;
+    double[] pushRates;
+    double[] dropRates;
+    Distribution pushTime;
+    Distribution pushLag;
+    Distribution batchSize;
+
+    MetricsSnapshot() {
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public long getEventsDroppedInQueueing() {
+        return eventsDroppedInQueueing;
+    }
+
+    public long getEventsDroppedInPush() {
+        return eventsDroppedInPush;
+    }
+
+    public long getEventsShed() {
+        return eventsShed;
+    }
+
+    public long getEventsSampled() {
+        return eventsSampled;
+    }
+
+    public long getEventsRateLimited() {
+        return eventsRateLimited;
+    }
+
+    public long getEventsCollapsed() {
+        return eventsCollapsed;
+    }
+
+    public long getEventsPushed() {
+        return eventsPushed;
+    }
+
+    public int getEventQueueSize() {
+        return eventQueueSize;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the events received by the appender per second, over 1, 5 and 15 minutes
+     */
+    public double[] getEventRates() {
+        return eventRates.clone();
+    }
+
+    /**
+     * @return the events pushed to Redis per second, over 1, 5 and 15 minutes
+     */
+    public double[] getPushRates() {
+        return pushRates.clone();
+    }
+
+    /**
+     * @return the events dropped, in queueing or in push, per second over 1, 5 and 15 minutes
+     */
+    public double[] getDropRates() {
+        return dropRates.clone();
+    }
+
+    /**
+     * @return the round-trip time of the pushes to Redis, in microseconds
+     */
+    public Distribution getPushTime() {
+        return pushTime;
+    }
+
+    /**
+     * @return the time between the oldest event of each batch being logged and the batch
+     *         being acknowledged by Redis, in milliseconds
+     */
+    public Distribution getPushLag() {
+        return pushLag;
+    }
+
+    /**
+     * @return the number of events in each pushed batch
+     */
+    public Distribution getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot[events=" + eventCount + ", pushed=" + eventsPushed
+            + ", droppedInQueueing=" + eventsDroppedInQueueing + ", droppedInPush=" + eventsDroppedInPush
+            + ", queueSize=" + eventQueueSize + ", pushTime=" + pushTime + ", pushLag=" + pushLag
+            + ", batchSize=" + batchSize + "]";
+    }
+
+    /**
+     * Percentiles of recorded values. Each one is the highest value of the bucket it fell
+     * in, so it overstates the recorded value by up to 3%.
+     */
+    public static final class Distribution {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Distribution(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the 50th, 90th, 99th and 99.9th percentiles and the maximum
+         */
+        public long[] toArray() {
+            return new long[] { p50, p90, p99, p999, max };
+        }
+
+        @Override
+        public String toString() {
+            return "[count=" + count + ", p50=" + p50 + ", p99=" + p99 + ", max=" + max + "]";
+        }
+    }
+
+}
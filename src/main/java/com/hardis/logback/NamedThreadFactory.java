@@ -1,11 +1,15 @@
 package com.hardis.logback;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class NamedThreadFactory implements ThreadFactory {
 
+    // looked up through reflection, so that the appender still runs on Java 6
+    private static final ThreadFactory VIRTUAL_THREADS = lookupVirtualThreads();
+
     private final String prefix;
     private final ThreadFactory threadFactory;
     private final boolean daemonThread;
@@ -29,4 +33,22 @@ class NamedThreadFactory implements ThreadFactory {
         return t;
     }
 
+    /**
+     * @return a factory of virtual threads, or null if the JVM has none: before Java 21, or
+     *         on Java 19 and 20 without <code>--enable-preview</code>
+     */
+    static ThreadFactory virtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    private static ThreadFactory lookupVirtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,74 @@
+package com.hardis.logback;
+
+/**
+ * {@link EventQueue} made of two bounded lanes, so that a flood of low priority events
+ * can't crowd out the high priority ones.
+ * <p>
+ * {@link #poll()} takes up to <code>weight</code> high priority elements for each low
+ * priority one while both lanes hold elements. Elements of different lanes are thus not
+ * polled in the order they were offered.
+ *
+ * @param <E> the queued element type
+ */
+public class PriorityEventQueue<E> implements EventQueue<E> {
+
+    public static final int HIGH = 0;
+    public static final int LOW = 1;
+
+    private final EventQueue<E> high;
+    private final EventQueue<E> low;
+    private final int weight;
+    // high priority elements polled since the last low priority one, consumer only
+    private int credit = 0;
+
+    public PriorityEventQueue(EventQueue<E> high, EventQueue<E> low, int weight) {
+        this.high = high;
+        this.low = low;
+        this.weight = Math.max(1, weight);
+    }
+
+    /**
+     * Adds an element to the low priority lane.
+     */
+    public boolean offer(E e) {
+        return low.offer(e);
+    }
+
+    /**
+     * Adds an element to the lane {@link #HIGH} or {@link #LOW}.
+     */
+    public boolean offer(E e, int lane) {
+        return lane(lane).offer(e);
+    }
+
+    public E poll() {
+        E e;
+        if (credit < weight) {
+            e = high.poll();
+            if (e != null) {
+                credit++;
+                return e;
+            }
+        }
+        credit = 0;
+        e = low.poll();
+        return e != null ? e : high.poll();
+    }
+
+    public EventQueue<E> lane(int lane) {
+        return lane == HIGH ? high : low;
+    }
+
+    public int size() {
+        return high.size() + low.size();
+    }
+
+    public boolean isEmpty() {
+        return high.isEmpty() && low.isEmpty();
+    }
+
+    public int capacity() {
+        return high.capacity() + low.capacity();
+    }
+
+}
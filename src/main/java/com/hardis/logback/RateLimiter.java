@@ -0,0 +1,218 @@
+package com.hardis.logback;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Filters the events before they are queued: samples them by level, then applies a token
+ * bucket per logger name or per message template. Safe for concurrent use.
+ * <p>
+ * The buckets are spread over segments, each holding at most <code>maxKeys / SEGMENTS</code>
+ * of them and evicting the least recently used one past that. The suppressed count of an
+ * evicted bucket is kept until the next {@link #suppressed()} call.
+ */
+final class RateLimiter {
+
+    static final int ACCEPTED = 0;
+    static final int SAMPLED = 1;
+    static final int LIMITED = 2;
+
+    private static final int SEGMENTS = 16;
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final boolean byTemplate;
+    private final double tokensPerNano;
+    private final double burst;
+    // keep ratio by level, indexed by level / 10000: TRACE, DEBUG, INFO, WARN, ERROR
+    private final double[] sampling;
+    private final Segment[] segments;
+    private final ConcurrentLinkedQueue<Suppressed> evicted = new ConcurrentLinkedQueue<Suppressed>();
+
+    /**
+     * @param rate events per second allowed per key, 0 for no limit
+     * @param burst events allowed at once per key
+     * @param sampling the ratios of events kept by level, as <code>DEBUG=0.1,TRACE=0.01</code>,
+     *                 or null to keep them all
+     */
+    RateLimiter(double rate, int burst, boolean byTemplate, int maxKeys, String sampling) {
+        this.byTemplate = byTemplate;
+        this.tokensPerNano = rate / 1e9;
+        this.burst = Math.max(1, burst);
+        this.sampling = parseSampling(sampling);
+        this.segments = new Segment[SEGMENTS];
+        int perSegment = Math.max(1, maxKeys / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    static double[] parseSampling(String sampling) {
+        double[] ratios = { 1, 1, 1, 1, 1 };
+        if (sampling == null || sampling.trim().length() == 0) {
+            return ratios;
+        }
+        for (String entry : sampling.split(",")) {
+            int separator = entry.indexOf('=');
+            Level level = separator < 0 ? null : Level.toLevel(entry.substring(0, separator).trim(), null);
+            if (level == null || level.toInt() < Level.TRACE_INT || level.toInt() > Level.ERROR_INT) {
+                throw new IllegalArgumentException("Invalid sampling '" + entry.trim() + "', expected LEVEL=ratio");
+            }
+            double ratio = Double.parseDouble(entry.substring(separator + 1).trim());
+            if (ratio < 0 || ratio > 1) {
+                throw new IllegalArgumentException("Sampling ratio must be between 0 and 1: '" + entry.trim() + "'");
+            }
+            ratios[level.toInt() / 10000] = ratio;
+        }
+        return ratios;
+    }
+
+    /**
+     * @return {@link #ACCEPTED}, {@link #SAMPLED} if dropped by the sampling of its level, or
+     *         {@link #LIMITED} if its key ran out of tokens
+     */
+    int accept(ILoggingEvent event) {
+        double ratio = sampling[Math.min(Math.max(event.getLevel().toInt() / 10000, 0), 4)];
+        if (ratio < 1 && (ratio == 0 || RANDOM.get().nextDouble() >= ratio)) {
+            return SAMPLED;
+        }
+        if (tokensPerNano <= 0) {
+            return ACCEPTED;
+        }
+        String key = byTemplate ? event.getMessage() : event.getLoggerName();
+        if (key == null) {
+            key = "";
+        }
+        Segment segment = segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+        long now = System.nanoTime();
+        synchronized (segment) {
+            Bucket bucket = segment.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                segment.put(key, bucket);
+            }
+            bucket.loggerName = event.getLoggerName();
+            if (bucket.take(now, tokensPerNano, burst)) {
+                return ACCEPTED;
+            }
+            return LIMITED;
+        }
+    }
+
+    /**
+     * Collects and resets the suppressed counts, and drops the buckets which filled up again
+     * and have nothing to report.
+     */
+    List<Suppressed> suppressed() {
+        List<Suppressed> suppressed = new ArrayList<Suppressed>();
+        Suppressed s;
+        while ((s = evicted.poll()) != null) {
+            suppressed.add(s);
+        }
+        long now = System.nanoTime();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<String, Bucket>> entries = segment.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Bucket> entry = entries.next();
+                    Bucket bucket = entry.getValue();
+                    if (bucket.suppressed > 0) {
+                        suppressed.add(new Suppressed(entry.getKey(), bucket.loggerName, bucket.suppressed));
+                        bucket.suppressed = 0;
+                    } else if (bucket.refill(now, tokensPerNano, burst) >= burst) {
+                        entries.remove();
+                    }
+                }
+            }
+        }
+        return suppressed;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long last;
+        private int suppressed;
+        private String loggerName;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.last = now;
+        }
+
+        double refill(long now, double tokensPerNano, double burst) {
+            tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+            last = now;
+            return tokens;
+        }
+
+        boolean take(long now, double tokensPerNano, double burst) {
+            if (refill(now, tokensPerNano, burst) >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            suppressed++;
+            return false;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<String, Bucket> {
+        private static final long serialVersionUID = 1L;
+        private final int maxKeys;
+
+        Segment(int maxKeys) {
+            super(16, 0.75f, true);
+            this.maxKeys = maxKeys;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            if (size() <= maxKeys) {
+                return false;
+            }
+            Bucket bucket = eldest.getValue();
+            if (bucket.suppressed > 0) {
+                evicted.add(new Suppressed(eldest.getKey(), bucket.loggerName, bucket.suppressed));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Events suppressed for a key since the last report.
+     */
+    static final class Suppressed {
+        final String key;
+        final String loggerName;
+        final int count;
+
+        Suppressed(String key, String loggerName, int count) {
+            this.key = key;
+            this.loggerName = loggerName;
+            this.count = count;
+        }
+    }
+
+}
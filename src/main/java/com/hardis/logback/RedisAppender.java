@@ -17,27 +17,43 @@
 
 package com.hardis.logback;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
-import java.util.Arrays;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.exceptions.JedisDataException;
-import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.JedisClusterCRC16;
 import redis.clients.util.SafeEncoder;
 
 
@@ -45,6 +61,18 @@ import redis.clients.util.SafeEncoder;
 public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements Runnable, RedisAppenderMBean {
 
 	final static Logger logger = LoggerFactory.getLogger(RedisAppender.class);
+
+    public static final String QUEUE_TYPE_RING_BUFFER = "ringBuffer";
+    public static final String QUEUE_TYPE_BLOCKING = "blocking";
+    public static final String SINK_TYPE_LIST = "list";
+    public static final String SINK_TYPE_STREAM = "stream";
+    public static final String SHARD_BY_ROUND_ROBIN = "roundRobin";
+    public static final String SHARD_BY_LOGGER = "logger";
+    public static final String SHARD_BY_MDC = "mdc";
+    public static final String RATE_LIMIT_BY_LOGGER = "logger";
+    public static final String RATE_LIMIT_BY_TEMPLATE = "template";
+    public static final String TRANSPORT_JEDIS = "jedis";
+    public static final String TRANSPORT_ASYNC = "async";
 	
     // configs
     private String host = "localhost";    
@@ -56,6 +84,56 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
     private long flushInterval = 500;
     private boolean alwaysBatch = true;
     private boolean useSSL = false;
+    private boolean pipelined = false;
+    private int maxPipelinedBatches = 10;
+    private String transport = TRANSPORT_JEDIS;
+    private int asyncWindow = 16;
+    private long commandTimeout = Protocol.DEFAULT_TIMEOUT;
+    private String queueType = QUEUE_TYPE_RING_BUFFER;
+    private boolean serializeOnAppend = false;
+    private String sinkType = SINK_TYPE_LIST;
+    private String streamField = "event";
+    private boolean streamSplitFields = false;
+    private long streamMaxLen = 0;
+    private boolean streamApproximateTrim = true;
+    private int flushWorkers = 1;
+    private int shards = 1;
+    private String shardBy = SHARD_BY_ROUND_ROBIN;
+    private String shardMdcKey;
+    private String clusterNodes; // comma separated host:port pairs
+    private String spillDirectory;
+    private int spillSegmentSize = 16 * 1024 * 1024;
+    private long spillMaxSize = 256L * 1024 * 1024;
+    private long spillFsyncInterval = 1000;
+    private int spillReplayBatches = 10;
+    private String envelope;
+    private int envelopeSize = 0;
+    private int envelopeLevel = Deflater.BEST_SPEED;
+    private String envelopeDictionary;
+    private boolean eventDriven = false;
+    private boolean virtualThreads = false;
+    private boolean sharedEngine = false;
+    private int maxBatchSize = 0;
+    private long targetLatency = 0;
+    private long maxQueueBytes = 0;
+    private long maxBatchBytes = 0;
+    private boolean priorityLanes = false;
+    private Level priorityLevel = Level.WARN;
+    private int priorityQueueSize = 1000;
+    private int priorityWeight = 4;
+    private int shedThreshold = 0;
+    private Level shedLevel = Level.DEBUG;
+    private int shedSampling = 0;
+    private int rateLimit = 0;
+    private int rateLimitBurst = 0;
+    private String rateLimitBy = RATE_LIMIT_BY_LOGGER;
+    private int rateLimitMaxKeys = 10000;
+    private String sampling;
+    private long suppressedSummaryInterval = 10000;
+    private long dedupWindow = 0;
+    private int dedupTableSize = 1024;
+    private boolean snapshotEvents = true;
+    private boolean includeCallerData = false;
 
 
 	private boolean purgeOnFailure = true;
@@ -63,21 +141,71 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
     private boolean registerMBean = true;
 
     // runtime stuff
-    private Queue<ILoggingEvent> events;
-    private int messageIndex = 0;
-    private byte[][] batch;
+    // holds ILoggingEvent instances, or their encoded byte[] when serializeOnAppend is set
+    private EventQueue<Object> events;
+    // same queue as events, when priorityLanes is set
+    private PriorityEventQueue<Object> lanes;
+    private int shedMark;
+    // set when rate limiting or sampling is configured
+    private RateLimiter rateLimiter;
+    private final ReentrantLock drainLock = new ReentrantLock();
+    // a lock rather than synchronized, which would pin a virtual thread connecting
+    final ReentrantLock connectLock = new ReentrantLock();
+    // for layouts other than JSONEventLayout, which has its own
+    private final ThreadLocal<JsonBuffer> encodeBuffers = new ThreadLocal<JsonBuffer>() {
+        @Override
+        protected JsonBuffer initialValue() {
+            return new JsonBuffer(1024);
+        }
+    };
+    // thread and logger names shared by the event snapshots
+    private final StringCache names = new StringCache(256);
+    private FlushWorker[] workers = new FlushWorker[0];
+    private BatchSizer batchSizer;
+    // only in event-driven mode
+    private FlushTrigger trigger;
+    private RedisSink sink;
+    private byte[][] shardKeys;
+    private ShardSelector shardSelector;
+    private SpillJournal journal;
+    // a single worker uses this connection, several workers share the pool
     private Jedis jedis;
+    // replaces the connections above with the async transport
+    private volatile AsyncRedisClient asyncClient;
+    private volatile JedisPool pool;
+    private volatile boolean poolHealthy = false;
+    // set once the cluster's slots are known, in cluster mode
+    private volatile JedisSlotBasedConnectionHandler cluster;
     private ScheduledExecutorService executor;
-    private ScheduledFuture<?> task;
+    // flushes the workers instead of the executor, with sharedEngine
+    private SharedFlushEngine engine;
+    // registered by activateOptions, unregistered on stop
+    private ObjectName mbeanName;
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
 
     // metrics
-    private int eventCounter = 0;
-    private int eventsDroppedInQueueing = 0;
-    private int eventsDroppedInPush = 0;
-    private int connectCounter = 0;
-    private int connectFailures = 0;
-    private int batchPurges = 0;
-    private int eventsPushed = 0;
+    // updated by the appending threads
+    private final Meter eventCounter = new Meter();
+    private final StripedCounter eventsDroppedInQueueing = new StripedCounter();
+    private final StripedCounter[] eventsDroppedByLane = { new StripedCounter(), new StripedCounter() };
+    private final StripedCounter eventsShed = new StripedCounter();
+    private final AtomicInteger shedCounter = new AtomicInteger();
+    private final StripedCounter eventsSampled = new StripedCounter();
+    private final StripedCounter eventsRateLimited = new StripedCounter();
+    // encoded size of the queued events, when they are encoded on append
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // updated by the flush workers, see FlushWorker for the per worker counters
+    private final AtomicInteger connectCounter = new AtomicInteger();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final Meter pushed = new Meter();
+    // dropped in queueing or in push
+    private final Meter dropped = new Meter();
+    // microseconds
+    private final Histogram pushTime = new Histogram();
+    // milliseconds from the oldest event of a batch being logged to the batch being pushed
+    private final Histogram pushLag = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+    private int metricTicks = 0;
 
 	// keep this for config compatibility for now
 	JSONEventLayout jsonlayout;    
@@ -98,51 +226,196 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
 	public void stop() {
 		super.stop();
         try {
-            task.cancel(false);
-            executor.shutdown();
-
-            boolean finished = executor.awaitTermination(waitTerminate, TimeUnit.MILLISECONDS);
-            if (finished) {
-                // We finished successfully, process any events in the queue if any still remain.
-                if (!events.isEmpty())
-                    run();
-                // Flush any remainder regardless of the alwaysBatch flag.
-                if (messageIndex > 0)
-                    push();
+            for (ScheduledFuture<?> task : tasks) {
+                task.cancel(false);
+            }
+            if (trigger != null) {
+                trigger.stop();
+            }
+            if (engine != null) {
+                // the executor is the engine's, which pushes what the worker holds
+                reportSuppressed();
+                engine.unregister(workers[0]);
+                engine = null;
             } else {
-            	logger.warn("Executor did not complete in " + waitTerminate + " milliseconds. Log entries may be lost.");
+                stopExecutor();
             }
 
             safeDisconnect();
+            if (pool != null) {
+                pool.destroy();
+            }
+            closeCluster();
+            if (journal != null) {
+                journal.close();
+            }
+            if (sink instanceof EnvelopeSink) {
+                ((EnvelopeSink) sink).close();
+            }
+            unregisterMBean();
         } catch (Exception e) {
         	logger.error(e.getMessage(), e);
         }
-	}	
+	}
+
+    /**
+     * Stops the appender's own threads, then pushes what the workers still hold.
+     */
+    private void stopExecutor() throws InterruptedException {
+        executor.shutdown();
+        reportSuppressed();
+
+        boolean finished = executor.awaitTermination(waitTerminate, TimeUnit.MILLISECONDS);
+        if (finished) {
+            // We finished successfully, process any events in the queue if any still remain.
+            // Flush any remainder regardless of the alwaysBatch flag.
+            for (FlushWorker worker : workers) {
+                worker.flushRemaining();
+            }
+        } else {
+        	logger.warn("Executor did not complete in " + waitTerminate + " milliseconds. Log entries may be lost.");
+        }
+    }
 	
 	@Override
 	protected void append(ILoggingEvent event) {
 		
         try {
-            eventCounter++ ;
-            int size = events.size();
-            if (size < queueSize) {
-                populateEvent(event);
-                try {
-                    events.add(event);
-                } catch (IllegalStateException e) {
-                    // safeguard in case multiple threads raced on almost full queue
-                    eventsDroppedInQueueing++;
+            eventCounter.mark();
+            if (rateLimiter != null) {
+                int accepted = rateLimiter.accept(event);
+                if (accepted == RateLimiter.SAMPLED) {
+                    eventsSampled.increment();
+                    return;
+                }
+                if (accepted == RateLimiter.LIMITED) {
+                    eventsRateLimited.increment();
+                    return;
                 }
-            } else {
-                eventsDroppedInQueueing++;
             }
-
+            queue(event);
         } catch (Exception e) {
             logger.error("Error populating event and adding to queue", e, event);
         }		
 		
 	}    
 
+    /**
+     * Queues an event which passed the rate limits.
+     */
+    private void queue(ILoggingEvent event) {
+        int lane = lanes == null || event.getLevel().isGreaterOrEqual(priorityLevel)
+                ? PriorityEventQueue.HIGH : PriorityEventQueue.LOW;
+        if (lane == PriorityEventQueue.LOW && shed(event)) {
+            eventsShed.increment();
+            return;
+        }
+        Object element;
+        long size = 0;
+        if (serializeOnAppend || maxQueueBytes > 0) {
+            byte[] bytes = encode(event);
+            size = bytes.length;
+            // the worker can't tell the shard from the encoded bytes
+            element = shardKeys.length > 1 ? new EncodedEvent(bytes, selectShard(event)) : bytes;
+        } else {
+            element = snapshot(event);
+        }
+        if (offer(element, size, lane)) {
+            if (trigger != null) {
+                trigger.queued(events.size(), batchSizer.get());
+            }
+        } else if (!spill(event, element)) {
+            eventsDroppedInQueueing.increment();
+            dropped.mark();
+            if (lanes != null) {
+                eventsDroppedByLane[lane].increment();
+            }
+        }
+    }
+
+    /**
+     * Queues a summary event for each key which had events suppressed by the rate limit
+     * since the last call.
+     */
+    private void reportSuppressed() {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return;
+        }
+        for (RateLimiter.Suppressed suppressed : limiter.suppressed()) {
+            try {
+                queue(createSuppressedEvent(suppressed.key, suppressed.loggerName, suppressed.count));
+            } catch (Exception e) {
+                logger.error("Error queueing the suppressed events summary", e);
+            }
+        }
+    }
+
+    /**
+     * Creates the event reporting that <code>count</code> events of <code>key</code> were
+     * suppressed by the rate limit. It is queued as is, without being rate limited.
+     */
+    protected ILoggingEvent createSuppressedEvent(String key, String loggerName, int count) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName(loggerName);
+        event.setLevel(Level.WARN);
+        event.setMessage("{} events suppressed by the rate limit of {} per second on {} '{}'");
+        event.setArgumentArray(new Object[] { count, rateLimit, rateLimitBy, key });
+        event.setTimeStamp(System.currentTimeMillis());
+        event.setThreadName(Thread.currentThread().getName());
+        event.setCallerData(new StackTraceElement[0]);
+        if (getContext() instanceof LoggerContext) {
+            event.setLoggerContextRemoteView(((LoggerContext) getContext()).getLoggerContextRemoteView());
+        }
+        return event;
+    }
+
+
+    /**
+     * Queues an element, within the <code>maxQueueBytes</code> budget if set.
+     */
+    private boolean offer(Object element, long size, int lane) {
+        if (size == 0) {
+            return offer(element, lane);
+        }
+        if (queuedBytes.addAndGet(size) > maxQueueBytes && maxQueueBytes > 0) {
+            queuedBytes.addAndGet(-size);
+            return false;
+        }
+        if (!offer(element, lane)) {
+            queuedBytes.addAndGet(-size);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean offer(Object element, int lane) {
+        return lanes == null ? events.offer(element) : lanes.offer(element, lane);
+    }
+
+    /**
+     * Past the high-water mark of the low priority lane, discards events at or below
+     * <code>shedLevel</code>, keeping one in <code>shedSampling</code> if set.
+     *
+     * @return whether to discard the event
+     */
+    private boolean shed(ILoggingEvent event) {
+        if (shedMark <= 0 || !shedLevel.isGreaterOrEqual(event.getLevel())
+                || lanes.lane(PriorityEventQueue.LOW).size() < shedMark) {
+            return false;
+        }
+        return shedSampling <= 0 || shedCounter.incrementAndGet() % shedSampling != 0;
+    }
+
+    private static long sizeOf(Object element) {
+        if (element instanceof byte[]) {
+            return ((byte[]) element).length;
+        }
+        if (element instanceof EncodedEvent) {
+            return ((EncodedEvent) element).bytes.length;
+        }
+        return 0;
+    }
 
     public void activateOptions() {
         try {
@@ -151,34 +424,368 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
             if (!(flushInterval > 0)) throw new IllegalStateException("FlushInterval (ex. Period) must be > 0. Configured value: " + flushInterval);
             if (!(queueSize > 0)) throw new IllegalStateException("QueueSize must be > 0. Configured value: " + queueSize);
             if (!(batchSize > 0)) throw new IllegalStateException("BatchSize must be > 0. Configured value: " + batchSize);
+            if (!(maxPipelinedBatches > 0)) throw new IllegalStateException("MaxPipelinedBatches must be > 0. Configured value: " + maxPipelinedBatches);
+            if (!(flushWorkers > 0)) throw new IllegalStateException("FlushWorkers must be > 0. Configured value: " + flushWorkers);
+            if (!(shards > 0)) throw new IllegalStateException("Shards must be > 0. Configured value: " + shards);
+            boolean async = TRANSPORT_ASYNC.equalsIgnoreCase(transport);
+            if (!async && !TRANSPORT_JEDIS.equalsIgnoreCase(transport)) throw new IllegalStateException("Unknown transport '" + transport + "', expected '" + TRANSPORT_JEDIS + "' or '" + TRANSPORT_ASYNC + "'");
+            if (async && (clusterNodes != null || useSSL)) throw new IllegalStateException("The async transport supports neither clusterNodes nor useSSL");
+            if (async && !(asyncWindow > 0)) throw new IllegalStateException("AsyncWindow must be > 0. Configured value: " + asyncWindow);
+            if (sharedEngine && getContext() == null) throw new IllegalStateException("SharedEngine needs the appender to belong to a logback context");
+            if (sharedEngine && (async || clusterNodes != null || spillDirectory != null || flushWorkers > 1)) throw new IllegalStateException("SharedEngine supports neither the async transport, clusterNodes, spillDirectory nor several flushWorkers");
+
+            // virtual threads park while waiting for events, polling would wake them for nothing
+            boolean virtual = virtualThreads && NamedThreadFactory.virtualThreads() != null;
+            if (virtualThreads && !virtual) {
+            	logger.warn("Virtual threads need Java 21 or later, the flush workers run on platform threads");
+            }
+            if (engine != null) {
+                // activated again, the previous worker leaves
+                engine.unregister(workers[0]);
+                engine = null;
+            }
+            if (sharedEngine) {
+                engine = SharedFlushEngine.get(getContext(), host, port, password, useSSL);
+                executor = engine.getExecutor();
+            } else if (executor == null) {
+                // one more thread for the metrics and the suppressed events summaries
+                executor = Executors.newScheduledThreadPool(flushWorkers + 1, createThreadFactory(virtual));
+            }
 
-            if (executor == null) executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(this.getClass().getSimpleName(), true));
-
-            if (task != null && !task.isDone()) task.cancel(true);
+            for (ScheduledFuture<?> task : tasks) {
+                if (!task.isDone()) task.cancel(true);
+            }
+            tasks.clear();
+            if (trigger != null) {
+                trigger.stop();
+            }
 
-            events = new ArrayBlockingQueue<ILoggingEvent>(queueSize);
-            batch = new byte[batchSize][];
-            messageIndex = 0;
+            if (priorityLanes) {
+                lanes = new PriorityEventQueue<Object>(this.<Object> createQueue(priorityQueueSize), this.<Object> createQueue(queueSize), priorityWeight);
+                events = lanes;
+                shedMark = shedThreshold > 0 ? (int) ((long) queueSize * shedThreshold / 100) : 0;
+            } else {
+                lanes = null;
+                events = createQueue(queueSize);
+            }
+            queuedBytes.set(0);
+            sink = createSink();
+            if (async && !(sink instanceof AsyncRedisSink)) throw new IllegalStateException("The async transport needs a sink implementing AsyncRedisSink, not " + sink.getClass().getName());
+            shardKeys = shardKeys(key, shards);
+            shardSelector = createShardSelector();
+            if (journal != null) {
+                journal.close();
+            }
+            journal = createSpillJournal();
+            rateLimiter = createRateLimiter();
+            batchSizer = new BatchSizer(batchSize, maxBatchSize, targetLatency);
+            workers = new FlushWorker[flushWorkers];
+            for (int i = 0; i < flushWorkers; i++) {
+                workers[i] = new FlushWorker(this, batchSizer);
+            }
 
-            createJedis();
+            if (engine == null) {
+                createJedis();
+            }
 
             if (registerMBean) {
                 registerMBean();
             }
 
-            task = executor.scheduleWithFixedDelay(this, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            if (engine != null) {
+                trigger = null;
+                engine.register(workers[0], flushInterval);
+            } else if (eventDriven || virtual) {
+                trigger = new FlushTrigger();
+                for (final FlushWorker worker : workers) {
+                    final FlushTrigger t = trigger;
+                    tasks.add(executor.schedule(new Runnable() {
+                        public void run() {
+                            worker.loop(t, flushInterval);
+                        }
+                    }, 0, TimeUnit.MILLISECONDS));
+                }
+            } else {
+                trigger = null;
+                for (int i = 0; i < flushWorkers; i++) {
+                    // spread the workers over the interval
+                    long delay = flushInterval + i * flushInterval / flushWorkers;
+                    tasks.add(executor.scheduleWithFixedDelay(workers[i], delay, flushInterval, TimeUnit.MILLISECONDS));
+                }
+            }
+            if (rateLimit > 0) {
+                tasks.add(executor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        reportSuppressed();
+                    }
+                }, suppressedSummaryInterval, suppressedSummaryInterval, TimeUnit.MILLISECONDS));
+            }
+            tasks.add(executor.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    tickMetrics();
+                }
+            }, Meter.TICK_SECONDS, Meter.TICK_SECONDS, TimeUnit.SECONDS));
         } catch (Exception e) {
             logger.error("Error during activateOptions", e);
         }
     }
 
     protected void createJedis() {
+        if (asyncClient != null) {
+            asyncClient.close();
+            asyncClient = null;
+        }
+        if (TRANSPORT_ASYNC.equalsIgnoreCase(transport)) {
+            asyncClient = createAsyncClient();
+            return;
+        }
+        if (clusterNodes != null) {
+            // the slots are discovered on connect
+            closeCluster();
+            return;
+        }
+        if (flushWorkers > 1) {
+            createPool();
+            return;
+        }
         if (jedis != null && jedis.isConnected()) {
             jedis.disconnect();
         }
         jedis = new Jedis(host, port,useSSL);
     }
 
+    /**
+     * Creates the threads of the flush workers, and of the metrics and summaries tasks.
+     *
+     * @param virtual whether they are virtual threads, which the JVM supports then
+     */
+    protected ThreadFactory createThreadFactory(boolean virtual) {
+        if (virtual) {
+            return new NamedThreadFactory(this.getClass().getSimpleName() + "-Virtual", true, NamedThreadFactory.virtualThreads());
+        }
+        return new NamedThreadFactory(this.getClass().getSimpleName(), true);
+    }
+
+    /**
+     * Creates the client of the async transport, started but not connected yet.
+     */
+    AsyncRedisClient createAsyncClient() {
+        AsyncRedisClient client = new AsyncRedisClient(host, port, password, Protocol.DEFAULT_TIMEOUT, commandTimeout, asyncWindow,
+            new NamedThreadFactory(this.getClass().getSimpleName() + "-IO", true));
+        try {
+            client.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't start the async transport", e);
+        }
+        return client;
+    }
+
+    /**
+     * Creates the pool the flush workers take their connections from, replacing the
+     * current one if any.
+     */
+    protected void createPool() {
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        // one connection per worker, plus one for checking the server is up
+        config.setMaxTotal(flushWorkers + 1);
+        config.setMaxIdle(flushWorkers + 1);
+        JedisPool previous = pool;
+        pool = new JedisPool(config, host, port, Protocol.DEFAULT_TIMEOUT, password, useSSL);
+        poolHealthy = false;
+        if (previous != null) {
+            previous.destroy();
+        }
+    }
+
+
+    /**
+     * Creates the queue between the appending threads and the flush thread, according to
+     * <code>queueType</code>. Override to plug in another {@link EventQueue}.
+     */
+    protected <E> EventQueue<E> createQueue(int capacity) {
+        if (QUEUE_TYPE_RING_BUFFER.equalsIgnoreCase(queueType)) {
+            return new RingBufferEventQueue<E>(capacity);
+        }
+        if (QUEUE_TYPE_BLOCKING.equalsIgnoreCase(queueType)) {
+            return new BlockingEventQueue<E>(capacity);
+        }
+        throw new IllegalStateException("Unknown queueType '" + queueType + "', expected '" + QUEUE_TYPE_RING_BUFFER + "' or '" + QUEUE_TYPE_BLOCKING + "'");
+    }
+
+    /**
+     * Creates the sink storing the batches in Redis, according to <code>sinkType</code>.
+     * Override to plug in another {@link RedisSink}.
+     */
+    protected RedisSink createSink() {
+        if (SINK_TYPE_LIST.equalsIgnoreCase(sinkType)) {
+            return wrapInEnvelopes(new ListSink());
+        }
+        if (SINK_TYPE_STREAM.equalsIgnoreCase(sinkType)) {
+            return wrapInEnvelopes(new StreamSink(streamField, streamSplitFields, streamMaxLen, streamApproximateTrim));
+        }
+        throw new IllegalStateException("Unknown sinkType '" + sinkType + "', expected '" + SINK_TYPE_LIST + "' or '" + SINK_TYPE_STREAM + "'");
+    }
+
+    /**
+     * Packs batches into envelopes before they reach <code>sink</code>, if
+     * <code>envelope</code> is set.
+     */
+    protected RedisSink wrapInEnvelopes(RedisSink sink) {
+        if (envelope == null) {
+            return sink;
+        }
+        byte[] dictionary = BatchEnvelope.DEFAULT_DICTIONARY;
+        if ("none".equalsIgnoreCase(envelopeDictionary)) {
+            dictionary = null;
+        } else if (envelopeDictionary != null) {
+            try {
+                dictionary = readFile(new File(envelopeDictionary));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read envelope dictionary " + envelopeDictionary, e);
+            }
+        }
+        BatchEnvelope batchEnvelope = new BatchEnvelope(envelope, envelopeLevel, dictionary);
+        if (sink instanceof AsyncRedisSink) {
+            return new EnvelopeSink.Async((AsyncRedisSink) sink, batchEnvelope, envelopeSize);
+        }
+        return new EnvelopeSink(sink, batchEnvelope, envelopeSize);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates the selector spreading events over the sharded keys, according to
+     * <code>shardBy</code>. Override to plug in another {@link ShardSelector}.
+     */
+    protected ShardSelector createShardSelector() {
+        if (SHARD_BY_ROUND_ROBIN.equalsIgnoreCase(shardBy)) {
+            return new ShardSelector.RoundRobin();
+        }
+        if (SHARD_BY_LOGGER.equalsIgnoreCase(shardBy)) {
+            return new ShardSelector.ByLogger();
+        }
+        if (SHARD_BY_MDC.equalsIgnoreCase(shardBy)) {
+            if (shardMdcKey == null) throw new IllegalStateException("Must set 'shardMdcKey' when sharding by MDC");
+            return new ShardSelector.ByMdc(shardMdcKey);
+        }
+        throw new IllegalStateException("Unknown shardBy '" + shardBy + "', expected '" + SHARD_BY_ROUND_ROBIN + "', '" + SHARD_BY_LOGGER + "' or '" + SHARD_BY_MDC + "'");
+    }
+
+    /**
+     * Opens the journal in <code>spillDirectory</code>, if set.
+     *
+     * @return null if events are not to be spilled to disk
+     */
+    protected SpillJournal createSpillJournal() {
+        if (spillDirectory == null) {
+            return null;
+        }
+        try {
+            return new SpillJournal(new File(spillDirectory), spillSegmentSize, spillMaxSize, spillFsyncInterval);
+        } catch (IOException e) {
+        	logger.error("Can't open spill journal in " + spillDirectory + ", events will be dropped instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return null if neither <code>rateLimit</code> nor <code>sampling</code> is set
+     */
+    private RateLimiter createRateLimiter() {
+        if (rateLimit <= 0 && (sampling == null || sampling.trim().length() == 0)) {
+            return null;
+        }
+        boolean byTemplate = RATE_LIMIT_BY_TEMPLATE.equalsIgnoreCase(rateLimitBy);
+        if (!byTemplate && !RATE_LIMIT_BY_LOGGER.equalsIgnoreCase(rateLimitBy)) {
+            throw new IllegalStateException("Unknown rateLimitBy '" + rateLimitBy + "', expected '" + RATE_LIMIT_BY_LOGGER + "' or '" + RATE_LIMIT_BY_TEMPLATE + "'");
+        }
+        return new RateLimiter(rateLimit, rateLimitBurst > 0 ? rateLimitBurst : rateLimit, byTemplate, rateLimitMaxKeys, sampling);
+    }
+
+    /**
+     * Writes an event the queue refused to the spill journal, encoding it on the logging
+     * thread if needed.
+     *
+     * @return false if there is no journal or it is full
+     */
+    private boolean spill(ILoggingEvent event, Object element) {
+        if (journal == null) {
+            return false;
+        }
+        byte[] bytes;
+        int shard;
+        if (element instanceof EncodedEvent) {
+            bytes = ((EncodedEvent) element).bytes;
+            shard = ((EncodedEvent) element).shard;
+        } else {
+            bytes = element instanceof byte[] ? (byte[]) element : encode(event);
+            shard = selectShard(event);
+        }
+        return journal.append(shard, new byte[][] { bytes });
+    }
+
+    /**
+     * Derives the keys events are pushed to: <code>key</code> itself when not sharded, else
+     * <code>key:{0}</code> to <code>key:{shards-1}</code>. The braces make each index the
+     * hash tag of its key, so that Redis Cluster puts each shard in its own slot.
+     */
+    static byte[][] shardKeys(String key, int shards) {
+        byte[][] keys = new byte[shards][];
+        if (shards == 1) {
+            keys[0] = SafeEncoder.encode(key);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys[i] = SafeEncoder.encode(key + ":{" + i + "}");
+            }
+        }
+        return keys;
+    }
+
+    int selectShard(ILoggingEvent event) {
+        return shardKeys.length == 1 ? 0 : shardSelector.select(event, shardKeys.length);
+    }
+
+    /**
+     * An event encoded on the logging thread, with the shard it goes to.
+     */
+    static final class EncodedEvent {
+        final byte[] bytes;
+        final int shard;
+
+        EncodedEvent(byte[] bytes, int shard) {
+            this.bytes = bytes;
+            this.shard = shard;
+        }
+    }
+
+    /**
+     * Returns what is queued for an event the flush workers encode: unless
+     * <code>snapshotEvents</code> is off, an {@link EventSnapshot} keeping only what the layout
+     * reads, so that the event's arguments and throwable are not retained by the queue.
+     * {@link JSONEventLayout} reads no arguments, and caller data only with
+     * <code>locationInfo</code>.
+     */
+    protected ILoggingEvent snapshot(ILoggingEvent event) {
+        if (!snapshotEvents) {
+            populateEvent(event);
+            return event;
+        }
+        Layout<ILoggingEvent> l = layout;
+        if (l == null || l instanceof JSONEventLayout) {
+            JSONEventLayout json = l == null ? jsonlayout : (JSONEventLayout) l;
+            return EventSnapshot.of(event, names, false, includeCallerData || json.getLocationInfo());
+        }
+        return EventSnapshot.of(event, names, true, includeCallerData);
+    }
 
     protected void populateEvent(ILoggingEvent event) {
         event.getThreadName();
@@ -191,6 +798,12 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
      * Pre: jedis not null
      */
     protected void safeDisconnect() {
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+        if (jedis == null) {
+            return;
+        }
         try {
             jedis.disconnect();
         } catch (Exception e) {
@@ -199,10 +812,28 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
     }
 
     protected boolean connect() {
+        connectLock.lock();
+        try {
+            return connectOnce();
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private boolean connectOnce() {
+        if (asyncClient != null) {
+            return connectAsync();
+        }
+        if (clusterNodes != null) {
+            return checkCluster();
+        }
+        if (pool != null) {
+            return checkPool();
+        }
         try {
             if (!jedis.isConnected()) {
             	logger.debug("Connecting to Redis at " + getRedisAddress());
-                connectCounter++;
+                connectCounter.incrementAndGet();
                 jedis.connect();
 
                 if (password != null) {
@@ -217,70 +848,219 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
             }
             return true;
         } catch (Exception e) {
-            connectFailures++;
+            connectFailures.incrementAndGet();
             // TODO: LogLog.error("Error connecting to Redis at " + getRedisAddress() + ": " + e.getMessage());
             return false;
         }
     }
 
-    public void run() {
-
-        if (!connect()) {
-            return;
+    private boolean connectAsync() {
+        if (asyncClient.isConnected()) {
+            return true;
         }
-
         try {
-            if (messageIndex == batchSize) push();
-
-            ILoggingEvent event;
-            while ((event = events.poll()) != null) {
-                try {
-                	String message = layout == null ? jsonlayout.doLayout(event) : layout.doLayout(event);
-                    batch[messageIndex++] = SafeEncoder.encode(message);
-                } catch (Exception e) {
-                	logger.error(e.getMessage(), e, event);
-                }
-
-                if (messageIndex == batchSize) push();
-            }
+        	logger.debug("Connecting to Redis at " + getRedisAddress());
+            connectCounter.incrementAndGet();
+            asyncClient.connect();
+            return true;
+        } catch (Exception e) {
+            connectFailures.incrementAndGet();
+            return false;
+        }
+    }
 
-            if (!alwaysBatch && messageIndex > 0) {
-                // push incomplete batches
-                push();
+    /**
+     * Discovers the cluster's slots through the first reachable node of
+     * <code>clusterNodes</code>.
+     */
+    private boolean checkCluster() {
+        if (cluster != null) {
+            return true;
+        }
+        Set<HostAndPort> nodes = new HashSet<HostAndPort>();
+        for (String node : clusterNodes.split(",")) {
+            String[] hostport = node.trim().split(":");
+            nodes.add(new HostAndPort(hostport[0], Integer.parseInt(hostport[1])));
+        }
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        // per node: one connection per worker, plus one for slot discovery
+        config.setMaxTotal(flushWorkers + 1);
+        config.setMaxIdle(flushWorkers + 1);
+    	logger.debug("Connecting to Redis Cluster at " + clusterNodes);
+        connectCounter.incrementAndGet();
+        JedisSlotBasedConnectionHandler handler = null;
+        try {
+            handler = new JedisSlotBasedConnectionHandler(nodes, config, Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT, password);
+            if (!handler.getNodes().isEmpty()) {
+                cluster = handler;
+                return true;
             }
+        } catch (Exception e) {
+        }
+        connectFailures.incrementAndGet();
+        if (handler != null) {
+            handler.close();
+        }
+        return false;
+    }
 
-        } catch (JedisException je) {
-
-        	logger.debug("Can't push " + messageIndex + " events to Redis. Reconnecting for retry.", je);
-            safeDisconnect();
+    private void closeCluster() {
+        JedisSlotBasedConnectionHandler c = cluster;
+        cluster = null;
+        if (c != null) {
+            c.close();
+        }
+    }
 
+    /**
+     * Once a pooled connection broke, makes sure the server answers before workers go on.
+     */
+    private boolean checkPool() {
+        if (poolHealthy) {
+            return true;
+        }
+        Jedis check = null;
+        try {
+        	logger.debug("Connecting to Redis at " + getRedisAddress());
+            connectCounter.incrementAndGet();
+            check = pool.getResource();
+            // make sure we got a live connection
+            check.ping();
+            poolHealthy = true;
+            return true;
         } catch (Exception e) {
-        	logger.error("Can't push events to Redis", e);
+            connectFailures.incrementAndGet();
+            return false;
+        } finally {
+            if (check != null) {
+                check.close();
+            }
         }
     }
 
-    protected boolean push() {
-    	logger.debug("Sending " + messageIndex + " log messages to Redis at " + getRedisAddress());
+    /**
+     * Runs one flush cycle on each worker, in the calling thread. With
+     * <code>sharedEngine</code>, one on the workers of every appender sharing the engine.
+     */
+    public void run() {
+        if (engine != null) {
+            engine.run();
+            return;
+        }
+        for (FlushWorker worker : workers) {
+            worker.run();
+        }
+    }
+
+    /**
+     * Moves up to <code>max</code> queued elements into <code>into</code>. The queue only
+     * supports a single consumer, so workers take turns.
+     *
+     * @return the number of elements moved
+     */
+    int drain(Object[] into, int max) {
+        drainLock.lock();
         try {
+            int count = 0;
+            long bytes = 0;
+            Object element;
+            while (count < max && (element = events.poll()) != null) {
+                into[count++] = element;
+                bytes += sizeOf(element);
+            }
+            if (bytes > 0) {
+                queuedBytes.addAndGet(-bytes);
+            }
+            return count;
+        } finally {
+            drainLock.unlock();
+        }
+    }
 
-            jedis.rpush(SafeEncoder.encode(key),
-                batchSize == messageIndex
-                    ? batch
-                    : Arrays.copyOf(batch, messageIndex));
+    /**
+     * Renders an event with the configured layout. Runs on a flush worker, or on the
+     * appending thread when <code>serializeOnAppend</code> is set, in which case the layout
+     * must be safe for concurrent use.
+     */
+    protected byte[] encode(ILoggingEvent event) {
+        if (layout == null) {
+            return jsonlayout.encode(event);
+        }
+        if (layout instanceof JSONEventLayout) {
+            return ((JSONEventLayout) layout).encode(event);
+        }
+        // through a reused buffer rather than String.getBytes and its scratch array
+        JsonBuffer buf = encodeBuffers.get();
+        buf.reset(1024 * 1024, 1024);
+        buf.writeUtf8(layout.doLayout(event));
+        return buf.toByteArray();
+    }
 
-            eventsPushed += messageIndex;
-            messageIndex = 0;
-            return true;
+    /**
+     * Gives a flush worker a live connection: the appender's own connection when there is a
+     * single worker, else one from the pool. In cluster mode, a connection to the node serving
+     * <code>key</code>.
+     *
+     * @return null if Redis can't be reached
+     */
+    Jedis acquireConnection(byte[] key) {
+        if (!connect()) {
+            return null;
+        }
+        JedisSlotBasedConnectionHandler c = cluster;
+        if (c != null) {
+            try {
+                return c.getConnectionFromSlot(JedisClusterCRC16.getSlot(key));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        JedisPool p = pool;
+        if (p == null) {
+            return jedis;
+        }
+        try {
+            return p.getResource();
+        } catch (Exception e) {
+            poolHealthy = false;
+            return null;
+        }
+    }
 
-        } catch (JedisDataException jde) {
-            // Handling stuff like OOM's on Redis' side
-            if (purgeOnFailure) {
-            	logger.error("Can't push events to Redis at " + getRedisAddress() + ": " + jde.getMessage());
-                eventsDroppedInPush += messageIndex;
-                batchPurges++;
-                messageIndex = 0;
+    void releaseConnection(Jedis connection, boolean broken) {
+        JedisSlotBasedConnectionHandler c = cluster;
+        if (clusterNodes != null) {
+            try {
+                if (broken && c != null) {
+                    // a node failed or slots moved
+                    c.renewSlotCache();
+                }
+            } catch (Exception e) {
+                closeCluster();
             }
-            return false;
+            try {
+                connection.close();
+            } catch (Exception e) {
+            	logger.warn("Failed to release connection to Redis Cluster at " + clusterNodes);
+            }
+            return;
+        }
+        if (pool == null) {
+            if (broken) {
+                safeDisconnect();
+                // a pipeline broken midway leaves its replies pending, and Jedis refusing commands
+                jedis = new Jedis(host, port, useSSL);
+            }
+            return;
+        }
+        try {
+            if (broken) {
+                poolHealthy = false;
+            }
+            // Jedis flags connections which failed on I/O, the pool discards those
+            connection.close();
+        } catch (Exception e) {
+        	logger.warn("Failed to release connection to Redis at " + getRedisAddress());
         }
     }
 
@@ -293,6 +1073,9 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
     }
 
     public String getRedisAddress() {
+        if (clusterNodes != null) {
+            return clusterNodes;
+        }
         return host + ":" + port;
     }
 
@@ -352,28 +1135,384 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
 	public void setUseSSL(boolean useSSL) {
 		this.useSSL = useSSL;
 	}
-    public int getEventCounter() { return eventCounter; }
-    public int getEventsDroppedInQueueing() { return eventsDroppedInQueueing; }
-    public int getEventsDroppedInPush() { return eventsDroppedInPush; }
-    public int getConnectCounter() { return connectCounter; }
-    public int getConnectFailures() { return connectFailures; }
-    public int getBatchPurges() { return batchPurges; }
-    public int getEventsPushed() { return eventsPushed; }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public void setMaxPipelinedBatches(int maxPipelinedBatches) {
+        this.maxPipelinedBatches = maxPipelinedBatches;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public int getAsyncWindow() {
+        return asyncWindow;
+    }
+
+    public void setAsyncWindow(int asyncWindow) {
+        this.asyncWindow = asyncWindow;
+    }
+
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    public void setQueueType(String queueType) {
+        this.queueType = queueType;
+    }
+
+    public void setSerializeOnAppend(boolean serializeOnAppend) {
+        this.serializeOnAppend = serializeOnAppend;
+    }
+
+    public void setSinkType(String sinkType) {
+        this.sinkType = sinkType;
+    }
+
+    public void setStreamField(String streamField) {
+        this.streamField = streamField;
+    }
+
+    public void setStreamSplitFields(boolean streamSplitFields) {
+        this.streamSplitFields = streamSplitFields;
+    }
+
+    public void setStreamMaxLen(long streamMaxLen) {
+        this.streamMaxLen = streamMaxLen;
+    }
+
+    public void setStreamApproximateTrim(boolean streamApproximateTrim) {
+        this.streamApproximateTrim = streamApproximateTrim;
+    }
+
+    public void setFlushWorkers(int flushWorkers) {
+        this.flushWorkers = flushWorkers;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public void setShardBy(String shardBy) {
+        this.shardBy = shardBy;
+    }
+
+    public void setShardMdcKey(String shardMdcKey) {
+        this.shardMdcKey = shardMdcKey;
+    }
+
+    public void setClusterNodes(String clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    public void setSpillMaxSize(long spillMaxSize) {
+        this.spillMaxSize = spillMaxSize;
+    }
+
+    public void setSpillFsyncInterval(long spillFsyncInterval) {
+        this.spillFsyncInterval = spillFsyncInterval;
+    }
+
+    public void setSpillReplayBatches(int spillReplayBatches) {
+        this.spillReplayBatches = spillReplayBatches;
+    }
+
+    public void setEventDriven(boolean eventDriven) {
+        this.eventDriven = eventDriven;
+    }
+
+    public boolean isSharedEngine() {
+        return sharedEngine;
+    }
+
+    public void setSharedEngine(boolean sharedEngine) {
+        this.sharedEngine = sharedEngine;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setTargetLatency(long targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    public void setPriorityLanes(boolean priorityLanes) {
+        this.priorityLanes = priorityLanes;
+    }
+
+    public void setPriorityLevel(String priorityLevel) {
+        this.priorityLevel = Level.toLevel(priorityLevel, Level.WARN);
+    }
+
+    public void setPriorityQueueSize(int priorityQueueSize) {
+        this.priorityQueueSize = priorityQueueSize;
+    }
+
+    public void setPriorityWeight(int priorityWeight) {
+        this.priorityWeight = priorityWeight;
+    }
+
+    public void setShedThreshold(int shedThreshold) {
+        this.shedThreshold = shedThreshold;
+    }
+
+    public void setShedLevel(String shedLevel) {
+        this.shedLevel = Level.toLevel(shedLevel, Level.DEBUG);
+    }
+
+    public void setShedSampling(int shedSampling) {
+        this.shedSampling = shedSampling;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    public void setRateLimitBy(String rateLimitBy) {
+        this.rateLimitBy = rateLimitBy;
+    }
+
+    public void setRateLimitMaxKeys(int rateLimitMaxKeys) {
+        this.rateLimitMaxKeys = rateLimitMaxKeys;
+    }
+
+    public void setSampling(String sampling) {
+        this.sampling = sampling;
+    }
+
+    public void setSuppressedSummaryInterval(long suppressedSummaryInterval) {
+        this.suppressedSummaryInterval = suppressedSummaryInterval;
+    }
+
+    public void setDedupWindow(long dedupWindow) {
+        this.dedupWindow = dedupWindow;
+    }
+
+    public void setDedupTableSize(int dedupTableSize) {
+        this.dedupTableSize = dedupTableSize;
+    }
+
+    public void setSnapshotEvents(boolean snapshotEvents) {
+        this.snapshotEvents = snapshotEvents;
+    }
+
+    public void setIncludeCallerData(boolean includeCallerData) {
+        this.includeCallerData = includeCallerData;
+    }
+
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setEnvelope(String envelope) {
+        this.envelope = envelope;
+    }
+
+    public void setEnvelopeSize(int envelopeSize) {
+        this.envelopeSize = envelopeSize;
+    }
+
+    public void setEnvelopeLevel(int envelopeLevel) {
+        this.envelopeLevel = envelopeLevel;
+    }
+
+    public void setEnvelopeDictionary(String envelopeDictionary) {
+        this.envelopeDictionary = envelopeDictionary;
+    }
+
+    // used by the flush workers
+    EventQueue<Object> getEvents() { return events; }
+    RedisSink getSink() { return sink; }
+    byte[][] getShardKeys() { return shardKeys; }
+    boolean isCluster() { return clusterNodes != null; }
+    SpillJournal getJournal() { return journal; }
+    int getSpillReplayBatches() { return spillReplayBatches; }
+    long getMaxBatchBytes() { return maxBatchBytes; }
+    long getDedupWindow() { return dedupWindow; }
+    int getDedupTableSize() { return dedupTableSize; }
+    boolean isAlwaysBatch() { return alwaysBatch; }
+    boolean isPipelined() { return pipelined; }
+    int getMaxPipelinedBatches() { return maxPipelinedBatches; }
+    AsyncRedisClient getAsyncClient() { return asyncClient; }
+    boolean isPurgeOnFailure() { return purgeOnFailure; }
+    public long getEventCounter() { return eventCounter.getCount(); }
+    public long getEventsDroppedInQueueing() { return eventsDroppedInQueueing.sum(); }
+    public long[] getEventsDroppedInQueueingByLane() {
+        return new long[] { eventsDroppedByLane[0].sum(), eventsDroppedByLane[1].sum() };
+    }
+    public long getEventsShed() { return eventsShed.sum(); }
+    public long getEventsSampled() { return eventsSampled.sum(); }
+    public long getEventsRateLimited() { return eventsRateLimited.sum(); }
+    public long getEventsDroppedInPush() {
+        long total = 0;
+        for (FlushWorker worker : workers) total += worker.getEventsDroppedInPush();
+        return total;
+    }
+    public int getConnectCounter() { return connectCounter.get(); }
+    public int getConnectFailures() { return connectFailures.get(); }
+    public int getBatchPurges() {
+        int total = 0;
+        for (FlushWorker worker : workers) total += worker.getBatchPurges();
+        return total;
+    }
+    public long getEventsCollapsed() {
+        long total = 0;
+        for (FlushWorker worker : workers) total += worker.getEventsCollapsed();
+        return total;
+    }
+    public long getEventsPushed() {
+        long total = 0;
+        for (FlushWorker worker : workers) total += worker.getEventsPushed();
+        return total;
+    }
     public int getEventQueueSize() { return events.size(); }
+    public int getFlushWorkers() { return workers.length; }
+    public long getQueuedBytes() { return queuedBytes.get(); }
+    public int getCurrentBatchSize() { return batchSizer == null ? batchSize : batchSizer.get(); }
+    public long getEventsSpilled() { return journal == null ? 0 : journal.getEventsSpilled(); }
+    public long getEventsReplayed() { return journal == null ? 0 : journal.getEventsReplayed(); }
+    public long getEventsInSpill() { return journal == null ? 0 : journal.getEventsPending(); }
+    public int getSpillSegments() { return journal == null ? 0 : journal.getSegmentCount(); }
+    public long[] getEventsPushedByWorker() {
+        long[] values = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) values[i] = workers[i].getEventsPushed();
+        return values;
+    }
+    public long[] getEventsDroppedInPushByWorker() {
+        long[] values = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) values[i] = workers[i].getEventsDroppedInPush();
+        return values;
+    }
+    public int[] getBatchPurgesByWorker() {
+        int[] values = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) values[i] = workers[i].getBatchPurges();
+        return values;
+    }
+    public double[] getEventRates() { return eventCounter.getRates(); }
+    public double[] getPushRates() { return pushed.getRates(); }
+    public double[] getDropRates() { return dropped.getRates(); }
+    public long[] getPushTimePercentiles() { return pushTime.snapshot().toArray(); }
+    public long[] getPushLagPercentiles() { return pushLag.snapshot().toArray(); }
+    public long[] getBatchSizePercentiles() { return batchSizes.snapshot().toArray(); }
+    public long getPushTimeP99() { return pushTime.snapshot().getP99(); }
+    public long getPushLagP99() { return pushLag.snapshot().getP99(); }
+    public long getPushLagMax() { return pushLag.snapshot().getMax(); }
+
+    /**
+     * @return all the metrics at once, for callers polling them without JMX
+     */
+    public MetricsSnapshot getMetrics() {
+        MetricsSnapshot metrics = new MetricsSnapshot();
+        metrics.timestamp = System.currentTimeMillis();
+        metrics.eventCount = getEventCounter();
+        metrics.eventsDroppedInQueueing = getEventsDroppedInQueueing();
+        metrics.eventsDroppedInPush = getEventsDroppedInPush();
+        metrics.eventsShed = getEventsShed();
+        metrics.eventsSampled = getEventsSampled();
+        metrics.eventsRateLimited = getEventsRateLimited();
+        metrics.eventsCollapsed = getEventsCollapsed();
+        metrics.eventsPushed = getEventsPushed();
+        metrics.eventQueueSize = getEventQueueSize();
+        metrics.queuedBytes = getQueuedBytes();
+        metrics.eventRates = getEventRates();
+        metrics.pushRates = getPushRates();
+        metrics.dropRates = getDropRates();
+        metrics.pushTime = pushTime.snapshot();
+        metrics.pushLag = pushLag.snapshot();
+        metrics.batchSize = batchSizes.snapshot();
+        return metrics;
+    }
+
+    /**
+     * Records a batch acknowledged by Redis.
+     *
+     * @param oldest the timestamp of the oldest event of the batch, or
+     *               <code>Long.MAX_VALUE</code> if unknown
+     */
+    void recordPush(int count, long nanos, long oldest) {
+        pushed.mark(count);
+        pushTime.record(nanos / 1000);
+        batchSizes.record(count);
+        if (oldest != Long.MAX_VALUE) {
+            pushLag.record(Math.max(0, System.currentTimeMillis() - oldest));
+        }
+    }
+
+    void recordDropped(int count) {
+        dropped.mark(count);
+    }
+
+    /**
+     * Moves the rates on, and the distributions every minute so that they cover the last one
+     * to two minutes.
+     */
+    void tickMetrics() {
+        eventCounter.tick();
+        pushed.tick();
+        dropped.tick();
+        if (++metricTicks % (60 / Meter.TICK_SECONDS) == 0) {
+            pushTime.rotate();
+            pushLag.rotate();
+            batchSizes.rotate();
+        }
+    }
+
     public boolean isUseSSL() {
 		return useSSL;
 	}
 
 
     private void registerMBean() {
+        unregisterMBean();
         Class me = this.getClass();
         String name = me.getPackage().getName() + ":type=" + me.getSimpleName();
 
         try {
             MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (getName() != null && (engine != null || mbs.isRegistered(new ObjectName(name)))) {
+                // appenders sharing an engine, or coming after the first, each get their own
+                name += ",name=" + ObjectName.quote(getName());
+            }
             ObjectName obj_name = new ObjectName(name);
             RedisAppenderMBean mbean = this;
             mbs.registerMBean(mbean, obj_name);
+            mbeanName = obj_name;
         } catch (Exception e) {
         	logger.error("Unable to register mbean", e);
         }
@@ -382,4 +1521,16 @@ public class RedisAppender extends UnsynchronizedAppenderBase<ILoggingEvent> imp
 
     }
 
+    private void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (Exception e) {
+        	logger.warn("Unable to unregister mbean " + mbeanName, e);
+        }
+        mbeanName = null;
+    }
+
 }
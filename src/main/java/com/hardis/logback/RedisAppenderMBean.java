@@ -2,13 +2,39 @@ package com.hardis.logback;
 
 public interface RedisAppenderMBean {
 
-    public int getEventCounter();
-    public int getEventsDroppedInQueueing();
-    public int getEventsDroppedInPush();
+    public long getEventCounter();
+    public long getEventsDroppedInQueueing();
+    public long[] getEventsDroppedInQueueingByLane();
+    public long getEventsShed();
+    public long getEventsSampled();
+    public long getEventsRateLimited();
+    public long getEventsDroppedInPush();
     public int getConnectCounter();
     public int getConnectFailures();
     public int getBatchPurges();
-    public int getEventsPushed();
+    public long getEventsPushed();
+    public long getEventsCollapsed();
     public int getEventQueueSize();
+    public int getFlushWorkers();
+    public int getCurrentBatchSize();
+    public long getQueuedBytes();
+    public long getEventsSpilled();
+    public long getEventsReplayed();
+    public long getEventsInSpill();
+    public int getSpillSegments();
+    public long[] getEventsPushedByWorker();
+    public long[] getEventsDroppedInPushByWorker();
+    public int[] getBatchPurgesByWorker();
+    // events per second over 1, 5 and 15 minutes
+    public double[] getEventRates();
+    public double[] getPushRates();
+    public double[] getDropRates();
+    // 50th, 90th, 99th and 99.9th percentiles and maximum over the last one to two minutes
+    public long[] getPushTimePercentiles();
+    public long[] getPushLagPercentiles();
+    public long[] getBatchSizePercentiles();
+    public long getPushTimeP99();
+    public long getPushLagP99();
+    public long getPushLagMax();
 
 }
@@ -0,0 +1,30 @@
+package com.hardis.logback;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Turns a batch of encoded events into the Redis command(s) storing them.
+ * <p>
+ * Errors returned by Redis surface as a {@link redis.clients.jedis.exceptions.JedisDataException},
+ * thrown by {@link #push(Jedis, byte[], byte[][])} or by {@link Response#get()}.
+ * <p>
+ * The flush workers reuse the <code>events</code> array of a blocking push once it returns:
+ * a sink must not keep a reference to it.
+ */
+public interface RedisSink {
+
+    /**
+     * Stores the events and waits for the reply.
+     */
+    void push(Jedis jedis, byte[] key, byte[][] events);
+
+    /**
+     * Queues the command(s) storing the events on a pipeline.
+     *
+     * @return the reply to check once the pipeline is synced
+     */
+    Response<?> push(Pipeline pipeline, byte[] key, byte[][] events);
+
+}
@@ -0,0 +1,128 @@
+package com.hardis.logback;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * The first of several identical events collapsed by the <code>dedupWindow</code> of a
+ * {@link RedisAppender}. Its MDC holds the <code>repeatCount</code>,
+ * <code>firstTimestamp</code> and <code>lastTimestamp</code> entries, for the layouts
+ * and patterns reading the MDC. {@link JSONEventLayout} writes them as fields instead, and
+ * leaves them out of its <code>properties</code>.
+ */
+public class RepeatedEvent implements ILoggingEvent {
+
+    public static final String REPEAT_COUNT = "repeatCount";
+    public static final String FIRST_TIMESTAMP = "firstTimestamp";
+    public static final String LAST_TIMESTAMP = "lastTimestamp";
+
+    private final ILoggingEvent first;
+    private final int repeatCount;
+    private final long lastTimestamp;
+    private Map<String, String> mdc;
+
+    public RepeatedEvent(ILoggingEvent first, int repeatCount, long lastTimestamp) {
+        this.first = first;
+        this.repeatCount = repeatCount;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * @return how many events were collapsed, including the first one
+     */
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
+    /**
+     * @return the first of the collapsed events, with its own MDC
+     */
+    public ILoggingEvent getFirstEvent() {
+        return first;
+    }
+
+    public long getFirstTimestamp() {
+        return first.getTimeStamp();
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public Map<String, String> getMDCPropertyMap() {
+        if (mdc == null) {
+            Map<String, String> firstMdc = first.getMDCPropertyMap();
+            Map<String, String> map = firstMdc == null ? new HashMap<String, String>() : new HashMap<String, String>(firstMdc);
+            map.put(REPEAT_COUNT, Integer.toString(repeatCount));
+            map.put(FIRST_TIMESTAMP, Long.toString(getFirstTimestamp()));
+            map.put(LAST_TIMESTAMP, Long.toString(lastTimestamp));
+            mdc = map;
+        }
+        return mdc;
+    }
+
+    @Deprecated
+    public Map<String, String> getMdc() {
+        return getMDCPropertyMap();
+    }
+
+    public String getThreadName() {
+        return first.getThreadName();
+    }
+
+    public Level getLevel() {
+        return first.getLevel();
+    }
+
+    public String getMessage() {
+        return first.getMessage();
+    }
+
+    public Object[] getArgumentArray() {
+        return first.getArgumentArray();
+    }
+
+    public String getFormattedMessage() {
+        return first.getFormattedMessage();
+    }
+
+    public String getLoggerName() {
+        return first.getLoggerName();
+    }
+
+    public LoggerContextVO getLoggerContextVO() {
+        return first.getLoggerContextVO();
+    }
+
+    public IThrowableProxy getThrowableProxy() {
+        return first.getThrowableProxy();
+    }
+
+    public StackTraceElement[] getCallerData() {
+        return first.getCallerData();
+    }
+
+    public boolean hasCallerData() {
+        return first.hasCallerData();
+    }
+
+    public Marker getMarker() {
+        return first.getMarker();
+    }
+
+    public long getTimeStamp() {
+        return first.getTimeStamp();
+    }
+
+    public void prepareForDeferredProcessing() {
+        first.prepareForDeferredProcessing();
+    }
+
+}
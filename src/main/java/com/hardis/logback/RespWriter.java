@@ -0,0 +1,157 @@
+package com.hardis.logback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Encodes Redis commands in the RESP protocol straight into direct buffers, and writes them
+ * to a channel in one gathering write.
+ * <p>
+ * A frame is laid out over fixed size chunks, taken from a pool and given back once written,
+ * so a large batch neither grows and copies a buffer nor allocates direct memory on every
+ * push. Each event is copied once, from its encoded bytes into the chunk; writing a heap
+ * buffer instead would have the JDK copy it into a temporary direct buffer first.
+ * <p>
+ * Not thread safe: meant for the event loop of {@link AsyncRedisClient}.
+ */
+final class RespWriter {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+    // filled chunks, flipped, waiting to be written in order
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private ByteBuffer filling;
+    // '*' or '$', a length and CRLF: sign, 10 digits and 2 bytes
+    private final byte[] header = new byte[13];
+
+    /**
+     * @param chunkSize the size of the direct buffers frames are laid out on
+     * @param maxPooled how many written chunks are kept for the next frames
+     */
+    RespWriter(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Appends a command to the frames waiting to be written.
+     *
+     * @param args the command name followed by its arguments
+     */
+    void command(byte[][] args) {
+        header((byte) '*', args.length);
+        for (byte[] arg : args) {
+            header((byte) '$', arg.length);
+            put(arg, 0, arg.length);
+            put(CRLF, 0, CRLF.length);
+        }
+    }
+
+    private void header(byte type, int length) {
+        int pos = header.length - CRLF.length;
+        header[pos] = '\r';
+        header[pos + 1] = '\n';
+        do {
+            header[--pos] = (byte) ('0' + length % 10);
+            length /= 10;
+        } while (length > 0);
+        header[--pos] = type;
+        put(header, pos, header.length - pos);
+    }
+
+    private void put(byte[] src, int offset, int length) {
+        while (length > 0) {
+            if (filling == null || !filling.hasRemaining()) {
+                seal();
+                filling = acquire();
+            }
+            int n = Math.min(length, filling.remaining());
+            filling.put(src, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Queues the chunk being filled for writing. The next command starts a new chunk, since
+     * a chunk can't be written from and appended to at once.
+     */
+    private void seal() {
+        if (filling != null) {
+            filling.flip();
+            pending.add(filling);
+            filling = null;
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer chunk = pool.poll();
+        return chunk != null ? chunk : ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    private void release(ByteBuffer chunk) {
+        if (pool.size() < maxPooled) {
+            chunk.clear();
+            pool.push(chunk);
+        }
+    }
+
+    /**
+     * @return true if no bytes are waiting to be written
+     */
+    boolean isEmpty() {
+        return pending.isEmpty() && (filling == null || filling.position() == 0);
+    }
+
+    /**
+     * Writes as much of the pending frames as the channel takes.
+     *
+     * @return true if everything was written
+     */
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if (filling != null && filling.position() > 0) {
+            seal();
+        }
+        if (pending.isEmpty()) {
+            return true;
+        }
+        if (gather.length < pending.size()) {
+            gather = new ByteBuffer[Math.max(gather.length * 2, pending.size())];
+        }
+        int n = 0;
+        for (ByteBuffer chunk : pending) {
+            gather[n++] = chunk;
+        }
+        try {
+            channel.write(gather, 0, n);
+        } finally {
+            Arrays.fill(gather, 0, n, null);
+        }
+        while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+            release(pending.poll());
+        }
+        return pending.isEmpty();
+    }
+
+    /**
+     * Drops the frames not written yet, as when their connection broke.
+     */
+    void clear() {
+        seal();
+        while (!pending.isEmpty()) {
+            release(pending.poll());
+        }
+    }
+
+    int pooled() {
+        return pool.size();
+    }
+
+}
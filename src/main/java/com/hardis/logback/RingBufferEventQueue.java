@@ -0,0 +1,78 @@
+package com.hardis.logback;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer/single-consumer {@link EventQueue}.
+ * <p>
+ * Producers claim a sequence number with a CAS on the tail and then publish the element in
+ * its slot. The consumer reads slots in sequence order, clears them and advances the head.
+ * The slot array is sized to the next power of two so that the sequence maps to a slot with
+ * a mask, but no more than <code>capacity</code> elements are ever accepted.
+ * <p>
+ * A producer that has claimed a slot but not yet published into it makes {@link #poll()}
+ * return null even though {@link #size()} counts the element: it will be picked up on the
+ * next drain.
+ */
+public class RingBufferEventQueue<E> implements EventQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final int capacity;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public RingBufferEventQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be > 0. Configured value: " + capacity);
+        int length = Integer.highestOneBit(capacity);
+        if (length < capacity) length <<= 1;
+        this.buffer = new AtomicReferenceArray<E>(length);
+        this.mask = length - 1;
+        this.capacity = capacity;
+    }
+
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        // the slot was cleared by the consumer before it moved the head past it
+        buffer.lazySet((int) t & mask, e);
+        return true;
+    }
+
+    public E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        E e = buffer.get(index);
+        if (e == null) {
+            // either empty, or the producer owning this slot has not published yet
+            return null;
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public int size() {
+        // read the head first so that a concurrent poll can't make the result negative
+        long h = head.get();
+        long size = tail.get() - h;
+        return size < 0 ? 0 : (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.hardis.logback;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Picks which of the sharded keys an event is pushed to. Implementations must be safe for
+ * concurrent use, as they are called by every flush worker, or by the logging threads when
+ * <code>serializeOnAppend</code> is set.
+ */
+public abstract class ShardSelector {
+
+    /**
+     * @return the shard of <code>event</code>, between 0 and <code>shards - 1</code>
+     */
+    public abstract int select(ILoggingEvent event, int shards);
+
+    static int shardOf(int hash, int shards) {
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Spreads events evenly over the shards, in turn.
+     */
+    public static class RoundRobin extends ShardSelector {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public int select(ILoggingEvent event, int shards) {
+            return shardOf(next.getAndIncrement(), shards);
+        }
+    }
+
+    /**
+     * Keeps the events of each logger on one shard, and thus in order.
+     */
+    public static class ByLogger extends ShardSelector {
+        @Override
+        public int select(ILoggingEvent event, int shards) {
+            String name = event.getLoggerName();
+            return name == null ? 0 : shardOf(name.hashCode(), shards);
+        }
+    }
+
+    /**
+     * Keeps the events sharing an MDC value on one shard. Events without the MDC key are
+     * spread in turn.
+     */
+    public static class ByMdc extends RoundRobin {
+        private final String mdcKey;
+
+        public ByMdc(String mdcKey) {
+            this.mdcKey = mdcKey;
+        }
+
+        @Override
+        public int select(ILoggingEvent event, int shards) {
+            Map<String, String> mdc = event.getMDCPropertyMap();
+            String value = mdc == null ? null : mdc.get(mdcKey);
+            return value == null ? super.select(event, shards) : shardOf(value.hashCode(), shards);
+        }
+    }
+
+}
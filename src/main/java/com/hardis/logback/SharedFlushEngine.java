@@ -0,0 +1,266 @@
+package com.hardis.logback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.spi.LifeCycle;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Flushes the appenders of a logback context which push to the same Redis, over a single
+ * connection and a single thread: each cycle pipelines the batches of every registered
+ * appender, whatever its key, and reads all the replies in one round-trip.
+ * <p>
+ * The appenders keep their own queue, batches and metrics, through their
+ * {@link FlushWorker}; the engine only drives the workers. There is one engine per
+ * endpoint and context, created by the first appender asking for it and kept in the
+ * context's object map. The context stops it on reset, before it stops the appenders: the
+ * engine then only stops cycling, and each appender still pushes what it holds, including
+ * what it logs while stopping, when it unregisters. An engine stopped but still held by the
+ * context is started again by the next appender asking for it.
+ */
+final class SharedFlushEngine implements LifeCycle, Runnable {
+
+	final static Logger logger = LoggerFactory.getLogger(SharedFlushEngine.class);
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final boolean useSSL;
+    private volatile ScheduledExecutorService executor;
+
+    // guards the connection and the workers, a cycle runs with it held
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<FlushWorker> workers = new ArrayList<FlushWorker>();
+    private Jedis jedis;
+    private long interval = Long.MAX_VALUE;
+    private ScheduledFuture<?> task;
+    private volatile boolean started = false;
+
+    SharedFlushEngine(String host, int port, String password, boolean useSSL) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.useSSL = useSSL;
+        this.jedis = new Jedis(host, port, useSSL);
+    }
+
+    /**
+     * @return the started engine pushing to <code>host:port</code> for the appenders of
+     *         <code>context</code>, created if there's none yet
+     * @throws IllegalStateException if the engine connects with another password or SSL
+     *             setting
+     */
+    static SharedFlushEngine get(Context context, String host, int port, String password, boolean useSSL) {
+        String name = SharedFlushEngine.class.getName() + "@" + host + ":" + port;
+        synchronized (context.getConfigurationLock()) {
+            SharedFlushEngine engine = (SharedFlushEngine) context.getObject(name);
+            if (engine == null) {
+                engine = new SharedFlushEngine(host, port, password, useSSL);
+                context.putObject(name, engine);
+                context.register(engine);
+            } else if (!(password == null ? engine.password == null : password.equals(engine.password)) || useSSL != engine.useSSL) {
+                throw new IllegalStateException("The appenders sharing the engine of " + engine.getRedisAddress() + " must use the same password and useSSL");
+            }
+            // the context doesn't forget a stopped engine before its reset, reuse it
+            engine.start();
+            return engine;
+        }
+    }
+
+    /**
+     * Runs the metrics and summaries tasks of the registered appenders.
+     */
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    String getRedisAddress() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Starts flushing a worker, every <code>flushInterval</code> milliseconds at most: the
+     * engine cycles at the shortest interval of its appenders.
+     */
+    void register(FlushWorker worker, long flushInterval) {
+        lock.lock();
+        try {
+            workers.add(worker);
+            if (flushInterval < interval) {
+                interval = flushInterval;
+                if (task != null) {
+                    task.cancel(false);
+                }
+                task = executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops flushing a worker, once it pushed everything it holds and its appender's queue,
+     * reconnecting if the engine was stopped.
+     */
+    void unregister(FlushWorker worker) {
+        lock.lock();
+        try {
+            if (workers.remove(worker)) {
+                flushRemaining(Collections.singletonList(worker));
+            }
+            if (!started && workers.isEmpty()) {
+                disconnect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs one flush cycle over every registered worker, in the calling thread.
+     */
+    public void run() {
+        lock.lock();
+        try {
+            cycle(workers);
+        } catch (RuntimeException e) {
+            // keep the task scheduled
+        	logger.error("Can't push events to Redis", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushRemaining(List<FlushWorker> closing) {
+        for (FlushWorker worker : closing) {
+            worker.closing();
+        }
+        if (!cycle(closing)) {
+        	logger.warn("Redis at " + getRedisAddress() + " is down, events still queued are lost");
+        }
+    }
+
+    /**
+     * Pipelines the batches of the workers, then reads all the replies at once.
+     *
+     * @return false if Redis is down or the connection broke
+     */
+    private boolean cycle(List<FlushWorker> flushed) {
+        if (flushed.isEmpty()) {
+            return true;
+        }
+        if (!connect()) {
+            return false;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        try {
+            int staged = 0;
+            for (FlushWorker worker : flushed) {
+                staged += worker.stage(pipeline);
+            }
+            if (staged == 0) {
+                return true;
+            }
+            long start = System.nanoTime();
+            pipeline.sync();
+            // the batches went back-to-back, account for each one's share
+            long nanos = (System.nanoTime() - start) / staged;
+            for (FlushWorker worker : flushed) {
+                worker.settle(nanos);
+            }
+            return true;
+        } catch (JedisException e) {
+        	logger.debug("Can't push events to Redis at " + getRedisAddress() + ". Reconnecting for retry.", e);
+            // each worker keeps the batches in flight for its next cycle
+            for (FlushWorker worker : flushed) {
+                worker.unstage();
+            }
+            disconnect();
+            return false;
+        }
+    }
+
+    private boolean connect() {
+        try {
+            if (!jedis.isConnected()) {
+            	logger.debug("Connecting to Redis at " + getRedisAddress());
+                jedis.connect();
+                if (password != null) {
+                    jedis.auth(password);
+                }
+                // make sure we got a live connection
+                jedis.ping();
+            }
+            return true;
+        } catch (Exception e) {
+            disconnect();
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        try {
+            jedis.disconnect();
+        } catch (Exception e) {
+        }
+        // a pipeline broken midway leaves its Jedis unusable
+        jedis = new Jedis(host, port, useSSL);
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if (started) {
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(getClass().getSimpleName(), true));
+            interval = Long.MAX_VALUE;
+            task = null;
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops cycling and pushes what the workers hold so far. The workers stay registered,
+     * for their appenders to push what they queue until they stop, see
+     * {@link #unregister(FlushWorker)}.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            if (!started) {
+                return;
+            }
+            started = false;
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+            flushRemaining(workers);
+            disconnect();
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdown();
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+}
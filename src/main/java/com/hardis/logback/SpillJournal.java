@@ -0,0 +1,363 @@
+package com.hardis.logback;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal keeping encoded batches on disk while Redis can't take them, to be
+ * replayed in the order they were written.
+ * <p>
+ * The journal is a sequence of fixed-size, memory-mapped segment files named
+ * <code>spill-&lt;sequence&gt;.journal</code>. A segment starts with a magic number and the
+ * position of the next record to replay, followed by the records:
+ * <pre>
+ * int length (of what follows), int shard, int count, count x (int size, byte[size] event)
+ * </pre>
+ * The length is written last, so that a record torn by a crash reads as the end of the
+ * segment. Segments are deleted once fully replayed; the read position is kept in the
+ * segment so that a restart resumes where replay stopped, batches being pushed at least
+ * once. Safe for concurrent use; one thread replays at a time, see {@link #tryLockReplay()}.
+ * <p>
+ * Segments are written out in full when created, so that a full disk fails the creation
+ * rather than a later write to the mapping, which would crash the writing thread. Appending
+ * never syncs to disk: {@link #sync()} does, from a thread which can afford the wait.
+ */
+public class SpillJournal {
+
+	private static final int MAGIC = 0x4C524A31;
+	// magic, read position
+	private static final int HEADER = 8;
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".journal";
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final long fsyncInterval;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	// written to since the last sync
+	private final List<Segment> unsynced = new ArrayList<Segment>();
+	private final ReentrantLock replayLock = new ReentrantLock();
+	private long nextSequence;
+	private long lastForce;
+
+	// metrics
+	private long eventsSpilled = 0;
+	private long eventsReplayed = 0;
+	private long eventsPending = 0;
+
+	/**
+	 * Opens the journal in <code>directory</code>, picking up the segments left by a previous
+	 * run.
+	 *
+	 * @param segmentSize size of each segment file, which bounds the size of a batch
+	 * @param maxSize maximum size of all segments; batches are refused beyond
+	 * @param fsyncInterval minimum delay in milliseconds between two syncs of the segments to
+	 *            disk, 0 to sync after every batch, negative to leave it to the OS
+	 */
+	public SpillJournal(File directory, int segmentSize, long maxSize, long fsyncInterval) throws IOException {
+		if (segmentSize <= HEADER) {
+			throw new IllegalArgumentException("Segment size must be > " + HEADER + ": " + segmentSize);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+		this.fsyncInterval = fsyncInterval;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create spill directory " + directory);
+		}
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return sequence(file) >= 0;
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long sa = sequence(a);
+				long sb = sequence(b);
+				return sa < sb ? -1 : sa == sb ? 0 : 1;
+			}
+		});
+		for (File file : files) {
+			Segment segment = open(file);
+			if (segment != null) {
+				segments.add(segment);
+			}
+			nextSequence = sequence(file) + 1;
+		}
+	}
+
+	private static long sequence(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the segment, or null if the file is not a readable segment
+	 */
+	private Segment open(File file) throws IOException {
+		if (file.length() <= HEADER) {
+			file.delete();
+			return null;
+		}
+		Segment segment = new Segment(file, map(file, file.length()));
+		ByteBuffer buffer = segment.buffer;
+		int read = buffer.getInt(4);
+		if (buffer.getInt(0) != MAGIC || read < HEADER || read > buffer.capacity()) {
+			file.delete();
+			return null;
+		}
+		segment.readPosition = read;
+		int pos = read;
+		while (pos + 4 <= buffer.capacity()) {
+			int length = buffer.getInt(pos);
+			if (length < 8 || pos + 4 + length > buffer.capacity()) {
+				break;
+			}
+			eventsPending += buffer.getInt(pos + 8);
+			pos += 4 + length;
+		}
+		segment.writePosition = pos;
+		return segment;
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping outlives the channel
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes <code>size</code> zero bytes to a new file, so that the file system allocates
+	 * its blocks now, unlike with a sparse file.
+	 */
+	private static void preallocate(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(size, 64 * 1024));
+			long pos = 0;
+			while (pos < size) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), size - pos));
+				pos += channel.write(zeros, pos);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes a batch at the end of the journal.
+	 *
+	 * @return false if the batch doesn't fit in a segment, or the journal is full
+	 */
+	public synchronized boolean append(int shard, byte[][] events) {
+		long size = 12;
+		for (byte[] event : events) {
+			size += 4 + event.length;
+		}
+		if (size > segmentSize - HEADER) {
+			return false;
+		}
+
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		if (segment == null || segment.writePosition + size > segment.buffer.capacity()) {
+			if (segments.size() >= maxSegments) {
+				return false;
+			}
+			try {
+				segment = create();
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		int pos = segment.writePosition;
+		ByteBuffer out = segment.buffer.duplicate();
+		out.position(pos + 4);
+		out.putInt(shard);
+		out.putInt(events.length);
+		for (byte[] event : events) {
+			out.putInt(event.length);
+			out.put(event);
+		}
+		// the length goes last, see the class comment
+		segment.buffer.putInt(pos, (int) size - 4);
+		segment.writePosition = pos + (int) size;
+
+		eventsSpilled += events.length;
+		eventsPending += events.length;
+		if (!unsynced.contains(segment)) {
+			unsynced.add(segment);
+		}
+		return true;
+	}
+
+	/**
+	 * Syncs the segments written to since the last sync to disk, unless the last sync is
+	 * more recent than <code>fsyncInterval</code>. The appending threads don't wait for it.
+	 */
+	public void sync() {
+		Segment[] dirty;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (fsyncInterval < 0 || unsynced.isEmpty() || now - lastForce < fsyncInterval) {
+				return;
+			}
+			dirty = unsynced.toArray(new Segment[unsynced.size()]);
+			unsynced.clear();
+			lastForce = now;
+		}
+		for (Segment segment : dirty) {
+			segment.buffer.force();
+		}
+	}
+
+	private Segment create() throws IOException {
+		File file = new File(directory, PREFIX + nextSequence++ + SUFFIX);
+		try {
+			preallocate(file, segmentSize);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		Segment segment = new Segment(file, map(file, segmentSize));
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(4, HEADER);
+		segment.readPosition = HEADER;
+		segment.writePosition = HEADER;
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Only one thread replays at a time: call {@link #peek()} and {@link #advance()} while
+	 * holding this lock.
+	 *
+	 * @return whether the lock was acquired
+	 */
+	public boolean tryLockReplay() {
+		return replayLock.tryLock();
+	}
+
+	public void unlockReplay() {
+		replayLock.unlock();
+	}
+
+	/**
+	 * @return the oldest batch not replayed yet, or null if there is none
+	 */
+	public synchronized Batch peek() {
+		while (!segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			if (segment.readPosition < segment.writePosition) {
+				ByteBuffer in = segment.buffer.duplicate();
+				in.position(segment.readPosition + 4);
+				int shard = in.getInt();
+				byte[][] events = new byte[in.getInt()][];
+				for (int i = 0; i < events.length; i++) {
+					events[i] = new byte[in.getInt()];
+					in.get(events[i]);
+				}
+				return new Batch(shard, events);
+			}
+			if (segment == segments.getLast()) {
+				// caught up with the writer
+				return null;
+			}
+			delete(segments.removeFirst());
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the batch returned by {@link #peek()} as replayed.
+	 */
+	public synchronized void advance() {
+		Segment segment = segments.getFirst();
+		int pos = segment.readPosition;
+		int count = segment.buffer.getInt(pos + 8);
+		segment.readPosition = pos + 4 + segment.buffer.getInt(pos);
+		segment.buffer.putInt(4, segment.readPosition);
+		eventsReplayed += count;
+		eventsPending -= count;
+		if (segment.readPosition == segment.writePosition && segment != segments.getLast()) {
+			delete(segments.removeFirst());
+		}
+	}
+
+	private static void delete(Segment segment) {
+		// the mapping is released by the GC; Windows won't delete the file until then
+		if (!segment.file.delete()) {
+			segment.file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Syncs the segments to disk. The journal can't be used afterwards.
+	 */
+	public synchronized void close() {
+		if (fsyncInterval >= 0) {
+			for (Segment segment : unsynced) {
+				segment.buffer.force();
+			}
+		}
+		unsynced.clear();
+		segments.clear();
+	}
+
+	public synchronized long getEventsSpilled() { return eventsSpilled; }
+	public synchronized long getEventsReplayed() { return eventsReplayed; }
+	public synchronized long getEventsPending() { return eventsPending; }
+	public synchronized int getSegmentCount() { return segments.size(); }
+
+	/**
+	 * A batch read back from the journal.
+	 */
+	public static final class Batch {
+		public final int shard;
+		public final byte[][] events;
+
+		Batch(int shard, byte[][] events) {
+			this.shard = shard;
+			this.events = events;
+		}
+	}
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		int readPosition;
+		int writePosition;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package com.hardis.logback;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Adds each event as an entry of a Redis stream, so that consumers can use consumer groups.
+ * <p>
+ * Jedis 2.9 has no XADD, so a batch is sent as one EVAL of a small script issuing the XADD
+ * commands server-side, followed by an optional <code>XTRIM MAXLEN [~]</code>. A batch thus
+ * still costs a single command on the wire, whether pipelined or not.
+ * <p>
+ * An entry is either a single field holding the event as produced by the layout, or, when
+ * <code>splitFields</code> is set, one field per top-level property of the JSON event.
+ * String properties are stored unescaped, other values as raw JSON. Events which are not a
+ * JSON object fall back to the single field.
+ * <p>
+ * Experimental: the script is only exercised by a test run against a live Redis 5 or later.
+ */
+public class StreamSink implements AsyncRedisSink {
+
+    private static final byte[] SCRIPT = SafeEncoder.encode(
+            "local i = 3\n"
+            + "local n = 0\n"
+            + "while i <= #ARGV do\n"
+            + "  local count = tonumber(ARGV[i])\n"
+            + "  local cmd = {'XADD', KEYS[1], '*'}\n"
+            + "  for j = 1, 2 * count do\n"
+            + "    cmd[3 + j] = ARGV[i + j]\n"
+            + "  end\n"
+            + "  redis.call(unpack(cmd))\n"
+            + "  i = i + 2 * count + 1\n"
+            + "  n = n + 1\n"
+            + "end\n"
+            + "if tonumber(ARGV[1]) > 0 then\n"
+            + "  if ARGV[2] == '~' then\n"
+            + "    redis.call('XTRIM', KEYS[1], 'MAXLEN', '~', ARGV[1])\n"
+            + "  else\n"
+            + "    redis.call('XTRIM', KEYS[1], 'MAXLEN', ARGV[1])\n"
+            + "  end\n"
+            + "end\n"
+            + "return n\n");
+
+    private static final byte[] ONE = SafeEncoder.encode("1");
+
+    private final byte[] field;
+    private final boolean splitFields;
+    private final byte[] maxLen;
+    private final byte[] trimMode;
+
+    /**
+     * @param field name of the field holding the whole event
+     * @param splitFields whether to store each top-level JSON property as its own field
+     * @param maxLen trim the stream to about this many entries after each batch, 0 to never trim
+     * @param approximateTrim whether trimming uses <code>MAXLEN ~</code>, which is much cheaper for Redis
+     */
+    public StreamSink(String field, boolean splitFields, long maxLen, boolean approximateTrim) {
+        this.field = SafeEncoder.encode(field);
+        this.splitFields = splitFields;
+        this.maxLen = SafeEncoder.encode(Long.toString(Math.max(maxLen, 0)));
+        this.trimMode = SafeEncoder.encode(approximateTrim ? "~" : "=");
+    }
+
+    public void push(Jedis jedis, byte[] key, byte[][] events) {
+        jedis.eval(SCRIPT, 1, params(key, events));
+    }
+
+    public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+        return pipeline.eval(SCRIPT, 1, params(key, events));
+    }
+
+    public byte[][] command(byte[] key, byte[][] events) {
+        byte[][] params = params(key, events);
+        byte[][] command = new byte[params.length + 3][];
+        command[0] = Protocol.Command.EVAL.raw;
+        command[1] = SCRIPT;
+        command[2] = ONE;
+        System.arraycopy(params, 0, command, 3, params.length);
+        return command;
+    }
+
+    private byte[][] params(byte[] key, byte[][] events) {
+        List<byte[]> params = new ArrayList<byte[]>(3 + events.length * 3);
+        params.add(key);
+        params.add(maxLen);
+        params.add(trimMode);
+        for (byte[] event : events) {
+            List<byte[]> fields = splitFields ? splitFields(event) : null;
+            if (fields == null) {
+                params.add(ONE);
+                params.add(field);
+                params.add(event);
+            } else {
+                params.add(SafeEncoder.encode(Integer.toString(fields.size() / 2)));
+                params.addAll(fields);
+            }
+        }
+        return params.toArray(new byte[params.size()][]);
+    }
+
+    /**
+     * Splits a JSON object into its top-level properties.
+     *
+     * @return alternating names and values, or null if <code>json</code> is not an object
+     */
+    static List<byte[]> splitFields(byte[] json) {
+        try {
+            List<byte[]> fields = new ArrayList<byte[]>();
+            int pos = skipWhitespace(json, 0);
+            if (json[pos++] != '{') return null;
+            pos = skipWhitespace(json, pos);
+            if (json[pos] == '}') return fields;
+            while (true) {
+                if (json[pos] != '"') return null;
+                ByteArrayOutputStream name = new ByteArrayOutputStream();
+                pos = unescape(json, pos + 1, name);
+                fields.add(name.toByteArray());
+
+                pos = skipWhitespace(json, pos);
+                if (json[pos++] != ':') return null;
+                pos = skipWhitespace(json, pos);
+
+                if (json[pos] == '"') {
+                    ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    pos = unescape(json, pos + 1, value);
+                    fields.add(value.toByteArray());
+                } else {
+                    int end = skipValue(json, pos);
+                    int trimmed = end;
+                    while (trimmed > pos && json[trimmed - 1] <= ' ') trimmed--;
+                    byte[] value = new byte[trimmed - pos];
+                    System.arraycopy(json, pos, value, 0, value.length);
+                    fields.add(value);
+                    pos = end;
+                }
+
+                pos = skipWhitespace(json, pos);
+                byte b = json[pos++];
+                if (b == '}') return fields;
+                if (b != ',') return null;
+                pos = skipWhitespace(json, pos);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static int skipWhitespace(byte[] json, int pos) {
+        while (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r') pos++;
+        return pos;
+    }
+
+    /**
+     * @return the position of the ',' or '}' ending the non-string value starting at <code>pos</code>
+     */
+    private static int skipValue(byte[] json, int pos) {
+        int depth = 0;
+        boolean inString = false;
+        for (;; pos++) {
+            byte b = json[pos];
+            if (inString) {
+                if (b == '\\') pos++;
+                else if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) return pos;
+                depth--;
+            } else if (b == ',' && depth == 0) {
+                return pos;
+            }
+        }
+    }
+
+    /**
+     * Decodes the JSON string starting after its opening quote into UTF-8.
+     *
+     * @return the position after the closing quote
+     */
+    private static int unescape(byte[] json, int pos, ByteArrayOutputStream out) {
+        // a high surrogate escape waiting for its low surrogate
+        int highSurrogate = -1;
+        for (;;) {
+            byte b = json[pos++];
+            int c;
+            if (b == '\\' && json[pos] == 'u') {
+                c = Integer.parseInt(new String(json, pos + 1, 4, JsonBuffer.UTF_8), 16);
+                pos += 5;
+            } else {
+                c = -1;
+            }
+            if (highSurrogate >= 0) {
+                if (c >= Character.MIN_LOW_SURROGATE && c <= Character.MAX_LOW_SURROGATE) {
+                    writeUtf8(out, Character.toCodePoint((char) highSurrogate, (char) c));
+                    highSurrogate = -1;
+                    continue;
+                }
+                // malformed, same replacement as String.getBytes
+                out.write('?');
+                highSurrogate = -1;
+            }
+            if (c >= 0) {
+                if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE) {
+                    highSurrogate = c;
+                } else if (c >= Character.MIN_LOW_SURROGATE && c <= Character.MAX_LOW_SURROGATE) {
+                    out.write('?');
+                } else {
+                    writeUtf8(out, c);
+                }
+                continue;
+            }
+            if (b == '"') return pos;
+            if (b != '\\') {
+                out.write(b);
+                continue;
+            }
+            b = json[pos++];
+            switch (b) {
+            case 'b': out.write('\b'); break;
+            case 'f': out.write('\f'); break;
+            case 'n': out.write('\n'); break;
+            case 'r': out.write('\r'); break;
+            case 't': out.write('\t'); break;
+            default:
+                // \" \\ \/
+                out.write(b);
+            }
+        }
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, int c) {
+        if (c < 0x80) {
+            out.write(c);
+        } else if (c < 0x800) {
+            out.write(0xC0 | (c >> 6));
+            out.write(0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            out.write(0xE0 | (c >> 12));
+            out.write(0x80 | ((c >> 6) & 0x3F));
+            out.write(0x80 | (c & 0x3F));
+        } else {
+            out.write(0xF0 | (c >> 18));
+            out.write(0x80 | ((c >> 12) & 0x3F));
+            out.write(0x80 | ((c >> 6) & 0x3F));
+            out.write(0x80 | (c & 0x3F));
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.hardis.logback;
+
+/**
+ * Direct-mapped cache handing out one instance per distinct string, so that the many queued
+ * events of a thread or logger share its name. A string replaces whatever other string was
+ * in its slot. Lock-free: racing threads at worst miss a chance to share an instance.
+ */
+final class StringCache {
+
+    private final String[] strings;
+    private final int mask;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    StringCache(int size) {
+        int slots = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.strings = new String[slots];
+        this.mask = slots - 1;
+    }
+
+    String get(String s) {
+        if (s == null) {
+            return null;
+        }
+        int h = s.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        String cached = strings[slot];
+        if (cached != null && cached.equals(s)) {
+            return cached;
+        }
+        strings[slot] = s;
+        return s;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.hardis.logback;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long counter spread over several cells, so that threads incrementing it at once rarely
+ * contend on the same cache line. Reading it sums the cells, and is not atomic with regard
+ * to concurrent increments.
+ */
+final class StripedCounter {
+
+    // longs between two cells, so that each one sits on its own cache line
+    private static final int PADDING = 16;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    static int stripes(int processors) {
+        return Math.min(64, Integer.highestOneBit(Math.max(1, processors) * 2 - 1) << 1);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        cells.getAndAdd(cell(), delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the cell of the current thread, the same one for as long as it lives
+     */
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h *= 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+}
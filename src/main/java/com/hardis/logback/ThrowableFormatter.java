@@ -0,0 +1,333 @@
+package com.hardis.logback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * Writes throwables in the text form of {@link ThrowableProxyUtil#asString(IThrowableProxy)},
+ * JSON-escaped, with optional limits on the number of frames and causes written.
+ * <p>
+ * Everything but the exception messages is kept, already escaped, in a bounded cache keyed
+ * on the class names and stack frames of the whole throwable tree. When the same failure is
+ * logged over and over only the messages need to be escaped again. Safe for concurrent use:
+ * the cache is a lock-free table indexed by a hash of the tree, computed without allocating,
+ * each slot holding the last throwable formatted there.
+ */
+public class ThrowableFormatter {
+
+	private final int maxFrames;
+	private final int maxCauseDepth;
+	private final boolean omitCommonFrames;
+	private final AtomicReferenceArray<Entry> cache;
+	private final int mask;
+
+	/**
+	 * @param maxFrames maximum number of frames written per throwable, 0 for no limit
+	 * @param maxCauseDepth maximum number of nested causes (and suppressed throwables)
+	 *            written below the logged throwable, 0 for no limit
+	 * @param omitCommonFrames whether to replace the frames a cause shares with its enclosing
+	 *            throwable by "... n common frames omitted", as logback does
+	 * @param cacheSize about the number of distinct throwables kept in cache, 0 to disable caching
+	 */
+	public ThrowableFormatter(int maxFrames, int maxCauseDepth, boolean omitCommonFrames, int cacheSize) {
+		this.maxFrames = maxFrames > 0 ? maxFrames : Integer.MAX_VALUE;
+		this.maxCauseDepth = maxCauseDepth > 0 ? maxCauseDepth : Integer.MAX_VALUE;
+		this.omitCommonFrames = omitCommonFrames;
+		if (cacheSize > 0) {
+			// two to four times as many slots, to keep collisions rare
+			int slots = Integer.highestOneBit(Math.min(cacheSize, 1 << 28)) << 2;
+			this.cache = new AtomicReferenceArray<Entry>(slots);
+			this.mask = slots - 1;
+		} else {
+			this.cache = null;
+			this.mask = 0;
+		}
+	}
+
+	/**
+	 * Writes the stack trace, escaped but without surrounding quotes.
+	 */
+	public void writeTo(JsonBuffer buf, IThrowableProxy tp) {
+		byte[][] fragments;
+		if (cache == null) {
+			fragments = build(tp);
+		} else {
+			long hash = hash(tp, 0);
+			int slot = (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+			Entry entry = cache.get(slot);
+			if (entry != null && entry.hash == hash && matches(entry.parts, 0, tp, 0) == entry.parts.length) {
+				fragments = entry.fragments;
+			} else {
+				fragments = build(tp);
+				cache.set(slot, new Entry(hash, fingerprint(tp), fragments));
+			}
+		}
+
+		MessageWriter writer = new MessageWriter(buf, fragments);
+		visit(writer, null, ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT, 0, tp);
+		buf.write(fragments[writer.index]);
+	}
+
+	/**
+	 * Formats everything but the messages, which separate the returned fragments.
+	 */
+	private byte[][] build(IThrowableProxy tp) {
+		FragmentBuilder builder = new FragmentBuilder();
+		visit(builder, null, ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT, 0, tp);
+		return builder.finish();
+	}
+
+	/**
+	 * Walks the throwable tree in the order of ThrowableProxyUtil.recursiveAppend, stopping
+	 * at <code>maxCauseDepth</code>.
+	 */
+	private void visit(Visitor visitor, String prefix, int indent, int depth, IThrowableProxy tp) {
+		visitor.firstLine(prefix, indent, tp);
+		visitor.frames(indent, tp);
+		IThrowableProxy[] suppressed = tp.getSuppressed();
+		if (suppressed != null && suppressed.length > 0) {
+			if (depth < maxCauseDepth) {
+				for (IThrowableProxy current : suppressed) {
+					visit(visitor, CoreConstants.SUPPRESSED, indent + ThrowableProxyUtil.SUPPRESSED_EXCEPTION_INDENT, depth + 1, current);
+				}
+			} else {
+				visitor.omitted(indent, suppressed.length, " suppressed omitted");
+			}
+		}
+		IThrowableProxy cause = tp.getCause();
+		if (cause != null) {
+			if (depth < maxCauseDepth) {
+				visit(visitor, CoreConstants.CAUSED_BY, indent, depth + 1, cause);
+			} else {
+				int causes = 0;
+				for (; cause != null; cause = cause.getCause()) {
+					causes++;
+				}
+				visitor.omitted(indent - 1, causes, " causes omitted");
+			}
+		}
+	}
+
+	private interface Visitor {
+		void firstLine(String prefix, int indent, IThrowableProxy tp);
+
+		void frames(int indent, IThrowableProxy tp);
+
+		void omitted(int indent, int count, String what);
+	}
+
+	private static class MessageWriter implements Visitor {
+		private final JsonBuffer buf;
+		private final byte[][] fragments;
+		int index;
+
+		MessageWriter(JsonBuffer buf, byte[][] fragments) {
+			this.buf = buf;
+			this.fragments = fragments;
+		}
+
+		public void firstLine(String prefix, int indent, IThrowableProxy tp) {
+			buf.write(fragments[index++]);
+			String message = tp.getMessage();
+			buf.writeEscaped(message != null ? message : "null");
+		}
+
+		public void frames(int indent, IThrowableProxy tp) {
+		}
+
+		public void omitted(int indent, int count, String what) {
+		}
+	}
+
+	private class FragmentBuilder implements Visitor {
+		private final JsonBuffer buf = new JsonBuffer(2048);
+		private final StringBuilder line = new StringBuilder(256);
+		private final List<byte[]> fragments = new ArrayList<byte[]>();
+
+		public void firstLine(String prefix, int indent, IThrowableProxy tp) {
+			line.setLength(0);
+			ThrowableProxyUtil.indent(line, indent - 1);
+			if (prefix != null) {
+				line.append(prefix);
+			}
+			line.append(tp.getClassName()).append(": ");
+			buf.writeEscaped(line);
+			fragments.add(buf.toByteArray());
+			buf.reset();
+			buf.writeEscaped(CoreConstants.LINE_SEPARATOR);
+		}
+
+		public void frames(int indent, IThrowableProxy tp) {
+			StackTraceElementProxy[] stepArray = tp.getStackTraceElementProxyArray();
+			int commonFrames = omitCommonFrames ? tp.getCommonFrames() : 0;
+			int frames = stepArray.length - commonFrames;
+			int written = Math.min(frames, maxFrames);
+
+			for (int i = 0; i < written; i++) {
+				line.setLength(0);
+				ThrowableProxyUtil.indent(line, indent);
+				ThrowableProxyUtil.subjoinSTEP(line, stepArray[i]);
+				line.append(CoreConstants.LINE_SEPARATOR);
+				buf.writeEscaped(line);
+			}
+			if (written < frames) {
+				omitted(indent, frames - written, " frames truncated");
+			}
+			if (commonFrames > 0) {
+				omitted(indent, commonFrames, " common frames omitted");
+			}
+		}
+
+		public void omitted(int indent, int count, String what) {
+			line.setLength(0);
+			ThrowableProxyUtil.indent(line, indent);
+			line.append("... ").append(count).append(what).append(CoreConstants.LINE_SEPARATOR);
+			buf.writeEscaped(line);
+		}
+
+		byte[][] finish() {
+			fragments.add(buf.toByteArray());
+			return fragments.toArray(new byte[fragments.size()][]);
+		}
+	}
+
+	/**
+	 * Hashes the class names, frames and shape of the throwable tree down to
+	 * <code>maxCauseDepth</code>, in the order {@link #visit} walks them.
+	 */
+	private long hash(IThrowableProxy t, int depth) {
+		long h = t.getClassName().hashCode();
+		h = 31 * h + t.getCommonFrames();
+		for (StackTraceElementProxy step : t.getStackTraceElementProxyArray()) {
+			h = 31 * h + step.getStackTraceElement().hashCode();
+		}
+		IThrowableProxy[] suppressed = t.getSuppressed();
+		int n = suppressed == null ? 0 : suppressed.length;
+		h = 31 * h + n;
+		if (depth < maxCauseDepth) {
+			for (int i = 0; i < n; i++) {
+				h = 31 * h + hash(suppressed[i], depth + 1);
+			}
+		}
+		IThrowableProxy cause = t.getCause();
+		if (cause == null) {
+			h = 31 * h;
+		} else if (depth < maxCauseDepth) {
+			h = 31 * h + 1;
+			h = 31 * h + hash(cause, depth + 1);
+		} else {
+			h = 31 * h - causeCount(cause);
+		}
+		return h;
+	}
+
+	/**
+	 * @return the same as {@link #hash}, as a detached copy
+	 */
+	private Object[] fingerprint(IThrowableProxy tp) {
+		List<Object> parts = new ArrayList<Object>();
+		fingerprint(parts, tp, 0);
+		return parts.toArray();
+	}
+
+	private void fingerprint(List<Object> parts, IThrowableProxy t, int depth) {
+		parts.add(t.getClassName());
+		parts.add(t.getCommonFrames());
+		StackTraceElementProxy[] stepArray = t.getStackTraceElementProxyArray();
+		StackTraceElement[] frames = new StackTraceElement[stepArray.length];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = stepArray[i].getStackTraceElement();
+		}
+		parts.add(frames);
+		IThrowableProxy[] suppressed = t.getSuppressed();
+		parts.add(suppressed == null ? 0 : suppressed.length);
+		if (suppressed != null && depth < maxCauseDepth) {
+			for (IThrowableProxy s : suppressed) {
+				fingerprint(parts, s, depth + 1);
+			}
+		}
+		IThrowableProxy cause = t.getCause();
+		if (cause == null) {
+			parts.add(0);
+		} else if (depth < maxCauseDepth) {
+			parts.add(1);
+			fingerprint(parts, cause, depth + 1);
+		} else {
+			// below the limit only the number of causes is written
+			parts.add(-causeCount(cause));
+		}
+	}
+
+	/**
+	 * Compares a throwable tree with a fingerprint, from <code>parts[i]</code> on.
+	 *
+	 * @return the index following the tree in <code>parts</code>, or -1 if it differs
+	 */
+	private int matches(Object[] parts, int i, IThrowableProxy t, int depth) {
+		if (i + 5 > parts.length || !t.getClassName().equals(parts[i]) || ((Integer) parts[i + 1]).intValue() != t.getCommonFrames()) {
+			return -1;
+		}
+		StackTraceElement[] frames = (StackTraceElement[]) parts[i + 2];
+		StackTraceElementProxy[] stepArray = t.getStackTraceElementProxyArray();
+		if (frames.length != stepArray.length) {
+			return -1;
+		}
+		for (int f = 0; f < frames.length; f++) {
+			if (!frames[f].equals(stepArray[f].getStackTraceElement())) {
+				return -1;
+			}
+		}
+		IThrowableProxy[] suppressed = t.getSuppressed();
+		int n = suppressed == null ? 0 : suppressed.length;
+		if (((Integer) parts[i + 3]).intValue() != n) {
+			return -1;
+		}
+		i += 4;
+		if (depth < maxCauseDepth) {
+			for (int k = 0; k < n && i >= 0; k++) {
+				i = matches(parts, i, suppressed[k], depth + 1);
+			}
+			if (i < 0 || i >= parts.length) {
+				return -1;
+			}
+		}
+		IThrowableProxy cause = t.getCause();
+		int expected = cause == null ? 0 : depth < maxCauseDepth ? 1 : -causeCount(cause);
+		if (((Integer) parts[i]).intValue() != expected) {
+			return -1;
+		}
+		return expected == 1 ? matches(parts, i + 1, cause, depth + 1) : i + 1;
+	}
+
+	private static int causeCount(IThrowableProxy cause) {
+		int count = 0;
+		for (; cause != null; cause = cause.getCause()) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * A formatted throwable tree. Holds copies of its class names and frames only, so that
+	 * the cache doesn't keep the logged throwables, nor what their fields reference, from
+	 * being collected.
+	 */
+	private static final class Entry {
+		final long hash;
+		final Object[] parts;
+		final byte[][] fragments;
+
+		Entry(long hash, Object[] parts, byte[][] fragments) {
+			this.hash = hash;
+			this.parts = parts;
+			this.fragments = fragments;
+		}
+	}
+
+}
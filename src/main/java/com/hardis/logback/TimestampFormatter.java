@@ -0,0 +1,107 @@
+package com.hardis.logback;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes event timestamps as JSON values, safe for concurrent use.
+ * <p>
+ * The text formats cache the formatted date and time down to the second, and only the
+ * milliseconds are written per event. The cache is an immutable entry swapped through a
+ * volatile field, so readers never lock; a new second costs one SimpleDateFormat call.
+ */
+public class TimestampFormatter {
+
+	/** <code>yyyy-MM-dd'T'HH:mm:ss.SZ</code> in the default time zone, as JSONEventLayout always wrote it. */
+	public static final String LEGACY = "legacy";
+	/** <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code> in UTC. */
+	public static final String ISO8601 = "iso8601";
+	/** Milliseconds since the epoch, as a JSON number. */
+	public static final String EPOCH_MILLIS = "epochMillis";
+
+	private final boolean epochMillis;
+	private final boolean padMillis;
+	private final DateFormat secondFormat;
+	private final DateFormat zoneFormat;
+
+	private volatile CachedSecond cached;
+
+	public TimestampFormatter(String mode) {
+		if (LEGACY.equalsIgnoreCase(mode)) {
+			epochMillis = false;
+			padMillis = false;
+			secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
+			zoneFormat = new SimpleDateFormat("Z");
+		} else if (ISO8601.equalsIgnoreCase(mode)) {
+			epochMillis = false;
+			padMillis = true;
+			secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
+			secondFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			zoneFormat = null;
+		} else if (EPOCH_MILLIS.equalsIgnoreCase(mode)) {
+			epochMillis = true;
+			padMillis = false;
+			secondFormat = null;
+			zoneFormat = null;
+		} else {
+			throw new IllegalArgumentException("Unknown timestamp format '" + mode + "', expected '" + LEGACY + "', '" + ISO8601 + "' or '" + EPOCH_MILLIS + "'");
+		}
+	}
+
+	private static final class CachedSecond {
+		final long second;
+		// everything up to and including the '.', opening quote included
+		final byte[] prefix;
+		// time zone and closing quote
+		final byte[] suffix;
+
+		CachedSecond(long second, byte[] prefix, byte[] suffix) {
+			this.second = second;
+			this.prefix = prefix;
+			this.suffix = suffix;
+		}
+	}
+
+	/**
+	 * Writes the timestamp as a complete JSON value, quotes included for the text formats.
+	 */
+	public void writeTo(JsonBuffer buf, long timestamp) {
+		if (epochMillis) {
+			buf.writeLong(timestamp);
+			return;
+		}
+		long second = timestamp >= 0 ? timestamp / 1000 : (timestamp - 999) / 1000;
+		int millis = (int) (timestamp - second * 1000);
+
+		CachedSecond c = cached;
+		if (c == null || c.second != second) {
+			c = format(second);
+			cached = c;
+		}
+
+		buf.write(c.prefix);
+		if (padMillis) {
+			buf.write((byte) ('0' + millis / 100));
+			buf.write((byte) ('0' + (millis / 10) % 10));
+			buf.write((byte) ('0' + millis % 10));
+		} else {
+			buf.writeLong(millis);
+		}
+		buf.write(c.suffix);
+	}
+
+	private CachedSecond format(long second) {
+		Date date = new Date(second * 1000);
+		String prefix;
+		String suffix;
+		// only reached once per second, SimpleDateFormat is not thread-safe
+		synchronized (this) {
+			prefix = '"' + secondFormat.format(date);
+			suffix = (zoneFormat != null ? zoneFormat.format(date) : "Z") + '"';
+		}
+		return new CachedSecond(second, prefix.getBytes(JsonBuffer.UTF_8), suffix.getBytes(JsonBuffer.UTF_8));
+	}
+
+}
@@ -0,0 +1,367 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+public class AsyncRedisClientTest {
+
+	private final Server server;
+	private AsyncRedisClient client;
+
+	public AsyncRedisClientTest() throws IOException {
+		server = new Server();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+		server.close();
+	}
+
+	private AsyncRedisClient connect(long commandTimeout) throws IOException {
+		client = new AsyncRedisClient("127.0.0.1", server.getPort(), null, 1000, commandTimeout, 4, new NamedThreadFactory("test", true));
+		client.start();
+		client.connect();
+		return client;
+	}
+
+	private static byte[][] command(String... args) {
+		byte[][] command = new byte[args.length][];
+		for (int i = 0; i < args.length; i++) {
+			command[i] = SafeEncoder.encode(args[i]);
+		}
+		return command;
+	}
+
+	private static ByteBuffer buffer(String s) {
+		return ByteBuffer.wrap(SafeEncoder.encode(s));
+	}
+
+	@Test
+	public void testReplies() {
+		AsyncRedisClient parser = new AsyncRedisClient("127.0.0.1", 6379, null, 1000, 1000, 4, new NamedThreadFactory("test", true));
+		assertEquals('+', parser.parse(buffer("+OK\r\n")));
+		assertEquals(':', parser.parse(buffer(":-42\r\n")));
+		assertEquals('$', parser.parse(buffer("$3\r\nabc\r\n")));
+		assertEquals('$', parser.parse(buffer("$-1\r\n")));
+		assertEquals('-', parser.parse(buffer("-ERR wrong\r\n")));
+
+		ByteBuffer replies = buffer("*2\r\n$1\r\na\r\n:1\r\n:7\r\n$5\r\nab");
+		assertEquals('*', parser.parse(replies));
+		assertEquals(':', parser.parse(replies));
+		assertEquals(AsyncRedisClient.INCOMPLETE, parser.parse(replies));
+		assertEquals(AsyncRedisClient.INCOMPLETE, parser.parse(buffer("*2\r\n:1\r\n")));
+	}
+
+	@Test
+	public void testRepliesCompleteCommandsInOrder() throws Exception {
+		connect(1000);
+		final List<Long> replies = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch done = new CountDownLatch(20);
+		for (int i = 0; i < 20; i++) {
+			// more commands than the window holds
+			assertTrue(client.send(command("RPUSH", "logs", "a", "b"), new AsyncRedisClient.Callback() {
+				public void completed(long reply) {
+					replies.add(reply);
+					done.countDown();
+				}
+
+				public void failed(JedisException e) {
+					replies.add(-1L);
+					done.countDown();
+				}
+			}));
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 20; i++) {
+			assertEquals(Long.valueOf(2 * (i + 1)), replies.get(i));
+		}
+		assertTrue(client.awaitIdle(1000));
+		assertEquals(0, client.inFlight());
+	}
+
+	@Test
+	public void testErrorReply() throws Exception {
+		connect(1000);
+		try {
+			client.execute(command("FAIL"));
+			throw new AssertionError("expected an error");
+		} catch (JedisDataException e) {
+			assertEquals("ERR failed", e.getMessage());
+		}
+		assertTrue(client.isConnected());
+		assertEquals(0, client.execute(command("SET", "a", "b")));
+		assertEquals(1, client.execute(command("RPUSH", "logs", "a")));
+	}
+
+	@Test
+	public void testCommandsSentWhileClosingAreCompleted() throws Exception {
+		connect(1000);
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		final AsyncRedisClient.Callback callback = new AsyncRedisClient.Callback() {
+			public void completed(long reply) {
+				completed.incrementAndGet();
+			}
+
+			public void failed(JedisException e) {
+				completed.incrementAndGet();
+			}
+		};
+		Thread[] senders = new Thread[4];
+		for (int t = 0; t < senders.length; t++) {
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 500; i++) {
+							if (client.send(command("RPUSH", "logs", "a"), callback)) {
+								sent.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			senders[t].start();
+		}
+		Thread.sleep(5);
+		client.close();
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		// every command queued is answered or failed, and gives its permit back
+		assertEquals(sent.get(), completed.get());
+		assertEquals(0, client.inFlight());
+	}
+
+	@Test
+	public void testStuckConnectionTimesOut() throws Exception {
+		connect(200);
+		server.silent = true;
+		long start = System.nanoTime();
+		try {
+			client.execute(command("RPUSH", "logs", "a"));
+			throw new AssertionError("expected a timeout");
+		} catch (JedisConnectionException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("within 200 ms"));
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertFalse(client.isConnected());
+
+		server.silent = false;
+		client.connect();
+		// the first push did land, only its reply went missing
+		assertEquals(2, client.execute(command("RPUSH", "logs", "a")));
+	}
+
+	@Test
+	public void testAppenderTransport() throws Exception {
+		RedisAppender appender = new RedisAppender();
+		appender.setHost("127.0.0.1");
+		appender.setPort(server.getPort());
+		appender.setKey("logs");
+		appender.setTransport(RedisAppender.TRANSPORT_ASYNC);
+		appender.setBatchSize(10);
+		appender.setRegisterMBean(false);
+		appender.setAlwaysBatch(false);
+		appender.setFlushInterval(3600000);
+		appender.activateOptions();
+		LoggerContext context = new LoggerContext();
+		for (int i = 0; i < 95; i++) {
+			appender.append(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message " + i, null, null));
+		}
+		appender.run();
+		appender.stop();
+		assertEquals(95, server.elements.get());
+		assertEquals(95, appender.getEventsPushed());
+		assertEquals(10, appender.getMetrics().getBatchSize().getCount());
+	}
+
+	private RedisAppender asyncAppender() {
+		RedisAppender appender = new RedisAppender();
+		appender.setHost("127.0.0.1");
+		appender.setPort(server.getPort());
+		appender.setKey("logs");
+		appender.setTransport(RedisAppender.TRANSPORT_ASYNC);
+		appender.setCommandTimeout(200);
+		appender.setRegisterMBean(false);
+		appender.setAlwaysBatch(false);
+		appender.setFlushInterval(3600000);
+		appender.activateOptions();
+		return appender;
+	}
+
+	private static void log(RedisAppender appender, int count) {
+		LoggerContext context = new LoggerContext();
+		for (int i = 0; i < count; i++) {
+			appender.append(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message " + i, null, null));
+		}
+	}
+
+	@Test
+	public void testStopRetriesBatchesLostWithTheConnection() {
+		RedisAppender appender = asyncAppender();
+		log(appender, 10);
+		server.closeAt.set(1);
+		appender.stop();
+		assertEquals(10, server.elements.get());
+		assertEquals(10, appender.getEventsPushed());
+		assertEquals(0, appender.getEventsDroppedInPush());
+	}
+
+	@Test
+	public void testStopCountsBatchesLeftUnanswered() throws Exception {
+		RedisAppender appender = asyncAppender();
+		log(appender, 10);
+		appender.run();
+		assertTrue(appender.getAsyncClient().awaitIdle(1000));
+		// the connection closes on the next batch, and no new one is accepted
+		log(appender, 10);
+		server.closeAt.set(1);
+		server.close();
+		appender.stop();
+		assertEquals(10, appender.getEventsPushed());
+		assertEquals(10, appender.getEventsDroppedInPush());
+	}
+
+	/**
+	 * Answers PING, counts RPUSH elements and answers <code>-ERR failed</code> to FAIL, and
+	 * <code>+OK</code> to anything else. Stops answering while <code>silent</code>, and
+	 * closes the connection instead of running the <code>closeAt</code>th RPUSH.
+	 */
+	static final class Server {
+		private final ServerSocket socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		final AtomicLong elements = new AtomicLong();
+		final AtomicInteger connections = new AtomicInteger();
+		volatile boolean silent = false;
+		final AtomicInteger closeAt = new AtomicInteger();
+
+		Server() throws IOException {
+			Thread acceptor = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							final Socket client = socket.accept();
+							connections.incrementAndGet();
+							Thread connection = new Thread() {
+								@Override
+								public void run() {
+									serve(client);
+								}
+							};
+							connection.setDaemon(true);
+							connection.start();
+						}
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int getPort() {
+			return socket.getLocalPort();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+
+		private void serve(Socket client) {
+			try {
+				InputStream in = new BufferedInputStream(client.getInputStream());
+				OutputStream out = client.getOutputStream();
+				while (in.read() == '*') {
+					int args = readInt(in);
+					String name = readBulk(in);
+					for (int i = 1; i < args; i++) {
+						readBulk(in);
+					}
+					String reply;
+					if (name.equals("PING")) {
+						reply = "+PONG\r\n";
+					} else if (name.equals("RPUSH")) {
+						if (closeAt.get() > 0 && closeAt.decrementAndGet() == 0) {
+							return;
+						}
+						reply = ":" + elements.addAndGet(args - 2) + "\r\n";
+					} else if (name.equals("FAIL")) {
+						reply = "-ERR failed\r\n";
+					} else {
+						reply = "+OK\r\n";
+					}
+					if (!silent) {
+						out.write(SafeEncoder.encode(reply));
+					}
+				}
+			} catch (IOException e) {
+				// client gone
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		private static String readBulk(InputStream in) throws IOException {
+			in.read(); // $
+			byte[] bytes = new byte[readInt(in)];
+			for (int read = 0; read < bytes.length; ) {
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n < 0) throw new EOFException();
+				read += n;
+			}
+			in.read();
+			in.read();
+			return SafeEncoder.encode(bytes);
+		}
+
+		private static int readInt(InputStream in) throws IOException {
+			int value = 0;
+			int b;
+			while ((b = in.read()) != '\r') {
+				if (b < 0) throw new EOFException();
+				value = value * 10 + (b - '0');
+			}
+			in.read();
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+public class BatchEnvelopeTest {
+
+	private static byte[][] events(int count) {
+		LoggerContext context = new LoggerContext();
+		JSONEventLayout layout = new JSONEventLayout();
+		layout.setSource("billing");
+		layout.setSourceHost("host-1.example.com");
+		layout.setType("app");
+		layout.start();
+		byte[][] events = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			LoggingEvent event = new LoggingEvent("x", context.getLogger("com.example.billing.Invoices"), Level.INFO,
+					"invoice " + i + " sent", null, null);
+			event.setThreadName("worker-" + (i % 4));
+			events[i] = layout.encode(event);
+		}
+		return events;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		byte[][] events = events(50);
+		events[3] = new byte[0];
+		for (String codec : new String[] { BatchEnvelope.CODEC_PLAIN, BatchEnvelope.CODEC_DEFLATE }) {
+			BatchEnvelope envelope = new BatchEnvelope(codec, Deflater.BEST_SPEED, BatchEnvelope.DEFAULT_DICTIONARY);
+			byte[] packed = envelope.encode(events, 2, 50);
+			assertTrue(BatchEnvelope.isEnvelope(packed));
+			byte[][] unpacked = BatchEnvelope.decode(packed);
+			assertEquals(48, unpacked.length);
+			for (int i = 0; i < unpacked.length; i++) {
+				assertArrayEquals(events[i + 2], unpacked[i]);
+			}
+		}
+		assertFalse(BatchEnvelope.isEnvelope(events[0]));
+	}
+
+	@Test
+	public void testDictionaries() {
+		byte[][] events = events(1);
+		int plain = new BatchEnvelope(BatchEnvelope.CODEC_DEFLATE, Deflater.BEST_SPEED, null).encode(events, 0, 1).length;
+		int withDictionary = new BatchEnvelope(BatchEnvelope.CODEC_DEFLATE, Deflater.BEST_SPEED, BatchEnvelope.DEFAULT_DICTIONARY)
+				.encode(events, 0, 1).length;
+		assertTrue(withDictionary + " < " + plain, withDictionary < plain);
+
+		byte[] custom = SafeEncoder.encode("com.example.billing.Invoices");
+		byte[] packed = new BatchEnvelope(BatchEnvelope.CODEC_DEFLATE, Deflater.BEST_SPEED, custom).encode(events, 0, 1);
+		try {
+			BatchEnvelope.decode(packed);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("unknown dictionary"));
+		}
+		assertArrayEquals(events[0], BatchEnvelope.decode(packed, custom)[0]);
+	}
+
+	@Test
+	public void testSinkPacksBatches() {
+		final List<byte[][]> pushed = new ArrayList<byte[][]>();
+		RedisSink capture = new RedisSink() {
+			public void push(Jedis jedis, byte[] key, byte[][] events) {
+				pushed.add(events);
+			}
+
+			public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		byte[][] events = events(100);
+		BatchEnvelope envelope = new BatchEnvelope(BatchEnvelope.CODEC_DEFLATE, Deflater.BEST_SPEED, BatchEnvelope.DEFAULT_DICTIONARY);
+
+		new EnvelopeSink(capture, envelope, 0).push((Jedis) null, null, events);
+		new EnvelopeSink(capture, envelope, 30).push((Jedis) null, null, events);
+		assertEquals(1, pushed.get(0).length);
+		assertEquals(4, pushed.get(1).length);
+
+		int size = 0;
+		int total = 0;
+		for (byte[] packed : pushed.get(1)) {
+			byte[][] unpacked = BatchEnvelope.decode(packed);
+			for (byte[] event : unpacked) {
+				assertArrayEquals(events[total++], event);
+			}
+			size += packed.length;
+		}
+		assertEquals(100, total);
+		assertTrue("compressed to " + size + " bytes", size * 5 < events[0].length * 100);
+	}
+
+
+	@Test
+	public void testDecodeRejectsForgedHeaders() {
+		byte[][] events = events(10);
+		for (String codec : new String[] { BatchEnvelope.CODEC_PLAIN, BatchEnvelope.CODEC_DEFLATE }) {
+			byte[] packed = new BatchEnvelope(codec, Deflater.BEST_SPEED, null).encode(events, 0, 10);
+			// payload length, then count, way beyond what the envelope holds
+			for (int offset : new int[] { 7, 3 }) {
+				byte[] forged = packed.clone();
+				forged[offset] = 0x7F;
+				try {
+					BatchEnvelope.decode(forged);
+					fail(codec + " " + offset);
+				} catch (IllegalArgumentException e) {
+					// rejected before allocating
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCloseEndsDeflaters() {
+		BatchEnvelope envelope = new BatchEnvelope(BatchEnvelope.CODEC_DEFLATE, Deflater.BEST_SPEED, null);
+		EnvelopeSink sink = new EnvelopeSink(new ListSink(), envelope, 0);
+		assertTrue(sink.pack(events(2))[0].length > 0);
+		sink.close();
+		try {
+			envelope.encode(events(1), 0, 1);
+			fail();
+		} catch (IllegalStateException e) {
+			// closed
+		}
+	}
+
+	@Test
+	public void testSinkSupportsAsyncOnlyOverAsyncSink() {
+		BatchEnvelope envelope = new BatchEnvelope(BatchEnvelope.CODEC_PLAIN, Deflater.BEST_SPEED, null);
+		RedisSink blocking = new RedisSink() {
+			public void push(Jedis jedis, byte[] key, byte[][] events) {
+			}
+
+			public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+				return null;
+			}
+		};
+		assertFalse(new EnvelopeSink(blocking, envelope, 0) instanceof AsyncRedisSink);
+		byte[][] command = new EnvelopeSink.Async(new ListSink(), envelope, 0).command(SafeEncoder.encode("logs"), events(3));
+		assertEquals("RPUSH", SafeEncoder.encode(command[0]));
+		assertEquals(3, command.length);
+		assertEquals(3, BatchEnvelope.decode(command[2]).length);
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BatchSizerTest {
+
+	private static final long FAST = 1000000L;
+	private static final long SLOW = 50000000L;
+
+	@Test
+	public void testGrowsUnderLoadAndShrinksOnMissedTarget() {
+		BatchSizer sizer = new BatchSizer(100, 200, 10);
+		// no backlog, or an incomplete batch: no reason to grow
+		sizer.pushed(100, FAST, false);
+		sizer.pushed(50, FAST, true);
+		assertEquals(100, sizer.get());
+
+		sizer.pushed(100, FAST, true);
+		assertEquals(125, sizer.get());
+		for (int i = 0; i < 10; i++) {
+			sizer.pushed(sizer.get(), FAST, true);
+		}
+		assertEquals(200, sizer.get());
+
+		sizer.pushed(200, SLOW, true);
+		assertEquals(100, sizer.get());
+		for (int i = 0; i < 10; i++) {
+			sizer.pushed(sizer.get(), SLOW, true);
+		}
+		assertEquals(1, sizer.get());
+	}
+
+	@Test
+	public void testFixedByDefault() {
+		BatchSizer sizer = new BatchSizer(100, 0, 0);
+		assertEquals(100, sizer.getMax());
+		sizer.pushed(100, SLOW, true);
+		sizer.pushed(100, FAST, true);
+		assertEquals(100, sizer.get());
+	}
+
+}
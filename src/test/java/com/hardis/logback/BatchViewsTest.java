@@ -0,0 +1,30 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BatchViewsTest {
+
+	@Test
+	public void testViewsAreRecycled() {
+		BatchViews views = new BatchViews(4);
+		byte[][] batch = { { 1 }, { 2 }, { 3 }, { 4 } };
+		assertSame(batch, views.of(batch, 4));
+
+		byte[][] view = views.of(batch, 3);
+		assertArrayEquals(new byte[][] { { 1 }, { 2 }, { 3 } }, view);
+		views.release(view);
+		assertNull(view[0]);
+		assertSame(view, views.of(batch, 3));
+		assertSame(batch[2], view[2]);
+
+		// same slot, other length
+		views.of(new byte[8][], 7);
+		assertNotSame(view, views.of(batch, 3));
+	}
+
+}
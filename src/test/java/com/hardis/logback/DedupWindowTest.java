@@ -0,0 +1,113 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class DedupWindowTest {
+
+	private final LoggerContext context = new LoggerContext();
+
+	private LoggingEvent event(String logger, String message, Throwable t, long timestamp) {
+		LoggingEvent event = new LoggingEvent("x", context.getLogger(logger), Level.ERROR, message, t, new Object[] { timestamp });
+		event.setTimeStamp(timestamp);
+		return event;
+	}
+
+	@Test
+	public void testCollapse() {
+		DedupWindow window = new DedupWindow(16, 1000);
+		Exception[] failures = new Exception[2];
+		for (int i = 0; i < failures.length; i++) {
+			// same stack trace, different messages
+			failures[i] = new IllegalStateException("id " + i);
+		}
+		Exception e1 = failures[0];
+		Exception e2 = failures[1];
+		LoggingEvent first = event("a", "retry {}", e1, 100);
+		assertTrue(window.add(first, 0));
+		assertTrue(window.add(event("a", "retry {}", e2, 300), 0));
+		assertTrue(window.add(event("a", "retry {}", e1, 200), 0));
+		LoggingEvent other = event("b", "retry {}", e1, 400);
+		assertTrue(window.add(other, 0));
+		// thrown from another line
+		assertTrue(window.add(event("a", "retry {}", new IllegalStateException(), 500), 0));
+		assertEquals(3, window.size());
+
+		assertFalse(window.expired(999999999L));
+		assertTrue(window.expired(1000000000L));
+
+		RepeatedEvent repeated = (RepeatedEvent) window.poll();
+		assertEquals(3, repeated.getRepeatCount());
+		assertEquals(100, repeated.getFirstTimestamp());
+		assertEquals(300, repeated.getLastTimestamp());
+		assertEquals("retry 100", repeated.getFormattedMessage());
+		assertEquals("3", repeated.getMDCPropertyMap().get(RepeatedEvent.REPEAT_COUNT));
+		// the first occurrence is polled in turn
+		assertFalse(window.add(event("a", "retry {}", e1, 600), 0));
+		assertSame(other, window.poll());
+		assertEquals(500, window.poll().getTimeStamp());
+		assertNull(window.poll());
+		assertEquals(0, window.size());
+		assertFalse(window.expired(Long.MAX_VALUE));
+		assertTrue(window.add(event("a", "retry {}", e1, 600), 0));
+	}
+
+	@Test
+	public void testFullTable() {
+		DedupWindow window = new DedupWindow(16, 1000);
+		int held = 0;
+		for (int i = 0; i < 100; i++) {
+			if (window.add(event("a", "message " + i, null, i), 0)) held++;
+		}
+		assertTrue(held <= 12);
+		assertEquals(held, window.size());
+		// the held events are still collapsed
+		assertTrue(window.add(event("a", "message 0", null, 1000), 0));
+		ILoggingEvent event;
+		int polled = 0;
+		while ((event = window.poll()) != null) {
+			polled++;
+			assertEquals(event.getMessage().equals("message 0"), event instanceof RepeatedEvent);
+		}
+		assertEquals(held, polled);
+	}
+
+	@Test
+	public void testLayout() {
+		JSONEventLayout layout = new JSONEventLayout();
+		layout.start();
+		String json = layout.doLayout(new RepeatedEvent(event("a", "m", null, 1500000000005L), 7, 1500000000105L));
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
+		assertTrue(json, json.contains("\"repeatCount\":7,\"firstTimestamp\":\"" + format.format(new Date(1500000000005L))
+				+ "\",\"lastTimestamp\":\"" + format.format(new Date(1500000000105L)) + "\""));
+	}
+
+	@Test
+	public void testLayoutWritesRepeatFieldsOnce() {
+		JSONEventLayout layout = new JSONEventLayout();
+		layout.setProperties(true);
+		layout.start();
+		LoggingEvent first = event("a", "m", null, 1500000000005L);
+		first.setMDCPropertyMap(Collections.singletonMap("user", "u1"));
+		String json = layout.doLayout(new RepeatedEvent(first, 7, 1500000000105L));
+		assertTrue(json, json.contains("\"properties\":{\"user\":\"u1\"}"));
+		for (String field : new String[] { RepeatedEvent.REPEAT_COUNT, RepeatedEvent.FIRST_TIMESTAMP, RepeatedEvent.LAST_TIMESTAMP }) {
+			assertEquals(json, json.indexOf("\"" + field + "\""), json.lastIndexOf("\"" + field + "\""));
+		}
+	}
+
+}
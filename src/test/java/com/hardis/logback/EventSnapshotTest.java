@@ -0,0 +1,73 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxyVO;
+
+public class EventSnapshotTest {
+
+	private final LoggerContext context = new LoggerContext();
+
+	private LoggingEvent event() {
+		LoggingEvent event = new LoggingEvent("x", context.getLogger("com.example.Test"), Level.WARN, "order {} failed",
+				new IllegalStateException("stock"), new Object[] { new StringBuilder("4711") });
+		event.setThreadName(new String("worker-1"));
+		event.setMDCPropertyMap(Collections.singletonMap("user", "jdoe"));
+		return event;
+	}
+
+	@Test
+	public void testSnapshot() {
+		LoggingEvent event = event();
+		EventSnapshot snapshot = EventSnapshot.of(event, false, false);
+		assertEquals("order 4711 failed", snapshot.getFormattedMessage());
+		assertEquals("order {} failed", snapshot.getMessage());
+		assertNull(snapshot.getArgumentArray());
+		assertEquals(0, snapshot.getCallerData().length);
+		assertFalse(snapshot.hasCallerData());
+		assertTrue(snapshot.getThrowableProxy() instanceof ThrowableProxyVO);
+		assertEquals("stock", snapshot.getThrowableProxy().getMessage());
+		assertEquals("jdoe", snapshot.getMDCPropertyMap().get("user"));
+		assertEquals(event.getTimeStamp(), snapshot.getTimeStamp());
+		assertSame(snapshot, EventSnapshot.of(snapshot, true, true));
+
+		event = event();
+		event.setCallerData(new StackTraceElement[] { new StackTraceElement("com.example.Test", "order", "Test.java", 12) });
+		EventSnapshot full = EventSnapshot.of(event, true, true);
+		assertEquals(1, full.getArgumentArray().length);
+		assertTrue(full.hasCallerData());
+		assertEquals(12, full.getCallerData()[0].getLineNumber());
+	}
+
+	@Test
+	public void testSameLayout() {
+		JSONEventLayout layout = new JSONEventLayout();
+		layout.setProperties(true);
+		layout.start();
+		LoggingEvent event = event();
+		assertEquals(layout.doLayout(event), layout.doLayout(EventSnapshot.of(event, false, false)));
+	}
+
+	@Test
+	public void testNamesAreShared() {
+		StringCache names = new StringCache(16);
+		EventSnapshot first = EventSnapshot.of(event(), names, false, false);
+		EventSnapshot second = EventSnapshot.of(event(), names, false, false);
+		assertNotSame(event().getThreadName(), event().getThreadName());
+		assertSame(first.getThreadName(), second.getThreadName());
+		assertSame(first.getLoggerName(), second.getLoggerName());
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class FlushTriggerTest {
+
+	private static class Counter implements FlushTrigger.Pending {
+		final AtomicInteger pending = new AtomicInteger();
+
+		public int count() {
+			return pending.get();
+		}
+
+		public int batchSize() {
+			return 10;
+		}
+	}
+
+	@Test
+	public void testBatchReadyAndLinger() throws InterruptedException {
+		FlushTrigger trigger = new FlushTrigger();
+		Counter counter = new Counter();
+
+		counter.pending.set(10);
+		assertFalse(trigger.await(counter, 10000));
+
+		counter.pending.set(3);
+		long start = System.nanoTime();
+		assertTrue(trigger.await(counter, 50));
+		assertTrue(System.nanoTime() - start >= 50000000L);
+	}
+
+	@Test
+	public void testWakesOnFullBatch() throws InterruptedException {
+		final FlushTrigger trigger = new FlushTrigger();
+		final Counter counter = new Counter();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 10; i++) {
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						return;
+					}
+					trigger.queued(counter.pending.incrementAndGet(), 10);
+				}
+			}
+		};
+		long start = System.nanoTime();
+		producer.start();
+		// the batch fills long before the linger time
+		assertFalse(trigger.await(counter, 10000));
+		assertTrue(System.nanoTime() - start < 5000000000L);
+		producer.join();
+	}
+
+	@Test
+	public void testWakesIdleWorkerWhateverTheQueueSize() throws InterruptedException {
+		final FlushTrigger trigger = new FlushTrigger();
+		final Counter counter = new Counter();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				// queued while the worker was busy, the queue already holds 2 when it parks
+				counter.pending.set(2);
+				trigger.queued(2, 10);
+			}
+		};
+		producer.start();
+		long start = System.nanoTime();
+		// woken by the event, then lingers 200ms: well under twice the linger time
+		assertTrue(trigger.await(counter, 200));
+		assertTrue(System.nanoTime() - start < 350000000L);
+		producer.join();
+	}
+
+	@Test
+	public void testStop() throws InterruptedException {
+		final FlushTrigger trigger = new FlushTrigger();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				trigger.stop();
+			}
+		}.start();
+		assertFalse(trigger.await(new Counter(), 10000));
+		assertFalse(trigger.isRunning());
+	}
+
+}
@@ -0,0 +1,461 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Runs the flush workers against a sink recording the batches, without Redis.
+ */
+public class FlushWorkerTest {
+
+	private final LoggerContext context = new LoggerContext();
+	private final List<byte[][]> pushed = Collections.synchronizedList(new ArrayList<byte[][]>());
+	private volatile Thread pusher;
+	private int pipelineWrites = 0;
+	private final Set<Integer> failedWrites = new HashSet<Integer>();
+	private final Set<Integer> rejectedWrites = new HashSet<Integer>();
+	private final RedisAppender appender = stub(pushed);
+
+	/**
+	 * @return an appender pushing to a sink which records the batches in <code>into</code>
+	 */
+	private RedisAppender stub(final List<byte[][]> into) {
+		return new RedisAppender() {
+			@Override
+			protected boolean connect() {
+				return true;
+			}
+
+			@Override
+			protected void createJedis() {
+			}
+
+			@Override
+			Jedis acquireConnection(byte[] key) {
+				return new Jedis();
+			}
+
+			@Override
+			void releaseConnection(Jedis connection, boolean broken) {
+			}
+
+			@Override
+			protected RedisSink createSink() {
+				return new RedisSink() {
+					public void push(Jedis jedis, byte[] key, byte[][] events) {
+						into.add(events.clone());
+						pusher = Thread.currentThread();
+					}
+
+					public Response<?> push(Pipeline pipeline, byte[] key, byte[][] events) {
+						// the writes are numbered from 1
+						if (failedWrites.contains(++pipelineWrites)) {
+							throw new JedisConnectionException("broken");
+						}
+						Response<Long> response = new Response<Long>(BuilderFactory.LONG);
+						response.set(rejectedWrites.contains(pipelineWrites)
+							? new JedisDataException("OOM command not allowed") : Long.valueOf(events.length));
+						return response;
+					}
+				};
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		appender.stop();
+	}
+
+	private void start() {
+		appender.setKey("logs");
+		appender.setRegisterMBean(false);
+		appender.setAlwaysBatch(false);
+		appender.setFlushInterval(3600000);
+		appender.activateOptions();
+	}
+
+	private void log(int length) {
+		log(Level.INFO, length);
+	}
+
+	private void log(Level level, int length) {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			message.append('x');
+		}
+		appender.append(new LoggingEvent("x", context.getLogger("test"), level, message.toString(), null, null));
+	}
+
+	private int maxBytes() {
+		int max = 0;
+		for (byte[][] batch : pushed) {
+			int bytes = 0;
+			for (byte[] event : batch) {
+				bytes += event.length;
+			}
+			if (batch.length > 1) {
+				max = Math.max(max, bytes);
+			}
+		}
+		return max;
+	}
+
+	@Test
+	public void testBatchesAreCutAtTheByteLimit() {
+		appender.setBatchSize(100);
+		appender.setMaxBatchBytes(4000);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(i == 10 ? 10000 : 300);
+		}
+		appender.run();
+
+		int events = 0;
+		for (byte[][] batch : pushed) {
+			events += batch.length;
+		}
+		assertEquals(50, events);
+		assertTrue(pushed.size() > 5);
+		assertTrue("batches up to " + maxBytes() + " bytes", maxBytes() <= 4000);
+	}
+
+	@Test
+	public void testPipelinedWriteFailuresKeepEachBatchOnce() {
+		appender.setPipelined(true);
+		appender.setBatchSize(10);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(100);
+		}
+		// the third batch fails to be written, then the second one when it is retried
+		failedWrites.add(3);
+		failedWrites.add(5);
+		appender.run();
+		appender.run();
+		appender.run();
+		assertEquals(50, appender.getEventsPushed());
+		assertEquals(0, appender.getEventsDroppedInPush());
+		assertEquals(0, appender.getQueuedBytes());
+	}
+
+	@Test
+	public void testPipelinedRejectedBatchIsPurged() {
+		appender.setPipelined(true);
+		appender.setBatchSize(10);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(100);
+		}
+		rejectedWrites.add(2);
+		appender.run();
+		assertEquals(40, appender.getEventsPushed());
+		assertEquals(10, appender.getEventsDroppedInPush());
+		assertEquals(1, appender.getBatchPurges());
+	}
+
+	@Test
+	public void testPipelinedRejectedBatchIsRetried() {
+		appender.setPipelined(true);
+		appender.setPurgeOnFailure(false);
+		appender.setBatchSize(10);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(100);
+		}
+		rejectedWrites.add(2);
+		appender.run();
+		assertEquals(40, appender.getEventsPushed());
+		appender.run();
+		assertEquals(50, appender.getEventsPushed());
+		assertEquals(0, appender.getEventsDroppedInPush());
+	}
+
+	@Test
+	public void testPipelinedRejectedBatchGoesFirst() {
+		appender.setPipelined(true);
+		appender.setPurgeOnFailure(false);
+		appender.setMaxPipelinedBatches(1);
+		appender.setBatchSize(10);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(100);
+		}
+		rejectedWrites.add(2);
+		appender.run();
+		// draining stopped at the rejected batch
+		assertEquals(10, appender.getEventsPushed());
+		assertEquals(2, pipelineWrites);
+		appender.run();
+		assertEquals(50, appender.getEventsPushed());
+		assertEquals(0, appender.getEventsDroppedInPush());
+	}
+
+	@Test
+	public void testPipelinedConnectionBreaks() throws Exception {
+		AsyncRedisClientTest.Server server = new AsyncRedisClientTest.Server();
+		RedisAppender redis = new RedisAppender();
+		try {
+			redis.setHost("127.0.0.1");
+			redis.setPort(server.getPort());
+			redis.setKey("logs");
+			redis.setPipelined(true);
+			redis.setBatchSize(10);
+			redis.setRegisterMBean(false);
+			redis.setAlwaysBatch(false);
+			redis.setFlushInterval(3600000);
+			redis.activateOptions();
+			for (int i = 0; i < 50; i++) {
+				redis.append(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message " + i, null, null));
+			}
+			// Redis goes away after the first two of the five batches
+			server.closeAt.set(3);
+			redis.run();
+			assertEquals(0, redis.getEventsPushed());
+			redis.run();
+			// the five batches are sent again over a new connection
+			assertEquals(50, redis.getEventsPushed());
+			assertEquals(70, server.elements.get());
+			assertEquals(2, server.connections.get());
+		} finally {
+			redis.stop();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		appender.setBatchSize(10);
+		appender.setVirtualThreads(true);
+		start();
+		for (int i = 0; i < 10; i++) {
+			log(100);
+		}
+		if (NamedThreadFactory.virtualThreads() == null) {
+			// before Java 21 the workers poll every flushInterval, as without the option
+			appender.run();
+		}
+		// virtual threads park until a batch is pending
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getEventsPushed() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, appender.getEventsPushed());
+		assertEquals(NamedThreadFactory.virtualThreads() != null, pusher.getName().contains("-Virtual-"));
+	}
+
+	@Test
+	public void testSeveralWorkersPushEachEventOnce() throws Exception {
+		appender.setKey("logs");
+		appender.setRegisterMBean(false);
+		appender.setAlwaysBatch(false);
+		appender.setFlushWorkers(3);
+		appender.setBatchSize(10);
+		appender.setFlushInterval(5);
+		appender.activateOptions();
+		// while the workers run, so that they take turns on the queue
+		for (int i = 0; i < 1000; i++) {
+			appender.append(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message " + i, null, null));
+			if (i % 50 == 49) {
+				Thread.sleep(3);
+			}
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getEventsPushed() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		appender.stop();
+
+		Set<String> events = new HashSet<String>();
+		int count = 0;
+		synchronized (pushed) {
+			for (byte[][] batch : pushed) {
+				for (byte[] event : batch) {
+					events.add(new String(event, JsonBuffer.UTF_8));
+					count++;
+				}
+			}
+		}
+		assertEquals(1000, count);
+		assertEquals(1000, events.size());
+
+		long[] byWorker = appender.getEventsPushedByWorker();
+		assertEquals(3, byWorker.length);
+		assertEquals(1000, byWorker[0] + byWorker[1] + byWorker[2]);
+		assertEquals(appender.getEventsPushed(), byWorker[0] + byWorker[1] + byWorker[2]);
+		long[] dropped = appender.getEventsDroppedInPushByWorker();
+		assertEquals(appender.getEventsDroppedInPush(), dropped[0] + dropped[1] + dropped[2]);
+	}
+
+	@Test
+	public void testSerializeOnAppendPushesTheSameBytes() {
+		List<byte[][]> serialized = Collections.synchronizedList(new ArrayList<byte[][]>());
+		RedisAppender other = stub(serialized);
+		other.setSerializeOnAppend(true);
+		other.setKey("logs");
+		other.setRegisterMBean(false);
+		other.setAlwaysBatch(false);
+		other.setFlushInterval(3600000);
+		other.activateOptions();
+		start();
+		try {
+			List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+			for (int i = 0; i < 20; i++) {
+				events.add(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message {}", null, new Object[] { i }));
+			}
+			// an event failing to render is dropped on both paths
+			events.add(10, new LoggingEvent("x", context.getLogger("test"), Level.INFO, "broken", null, null) {
+				@Override
+				public String getFormattedMessage() {
+					throw new IllegalStateException("can't render");
+				}
+			});
+			for (LoggingEvent event : events) {
+				appender.append(event);
+				other.append(event);
+			}
+
+			// the serialized appender queued the encoded bytes
+			Object[] first = new Object[1];
+			assertEquals(1, other.drain(first, 1));
+			assertTrue(first[0] instanceof byte[]);
+			assertTrue(other.getQueuedBytes() > 0);
+			other.run();
+			appender.run();
+
+			assertEquals(1, serialized.size());
+			assertEquals(20, pushed.get(0).length);
+			assertEquals(19, serialized.get(0).length);
+			assertArrayEquals(pushed.get(0)[0], (byte[]) first[0]);
+			for (int i = 0; i < 19; i++) {
+				assertArrayEquals(pushed.get(0)[i + 1], serialized.get(0)[i]);
+			}
+		} finally {
+			other.stop();
+		}
+	}
+
+	@Test
+	public void testQueueByteBudget() {
+		appender.setMaxQueueBytes(5000);
+		start();
+		for (int i = 0; i < 20; i++) {
+			log(500);
+		}
+		long queued = appender.getQueuedBytes();
+		assertTrue(queued + " bytes queued", queued > 4000 && queued <= 5000);
+		assertTrue(appender.getEventsDroppedInQueueing() > 10);
+
+		appender.run();
+		assertEquals(0, appender.getQueuedBytes());
+		assertEquals(20 - appender.getEventsDroppedInQueueing(), pushed.get(0).length);
+	}
+
+	@Test
+	public void testMetricsSnapshot() {
+		appender.setBatchSize(10);
+		start();
+		for (int i = 0; i < 35; i++) {
+			log(100);
+		}
+		appender.run();
+		appender.tickMetrics();
+
+		MetricsSnapshot metrics = appender.getMetrics();
+		assertEquals(35, metrics.getEventCount());
+		assertEquals(35, metrics.getEventsPushed());
+		assertEquals(4, metrics.getBatchSize().getCount());
+		assertEquals(10, metrics.getBatchSize().getMax());
+		assertEquals(5, metrics.getBatchSize().getP50() / 2);
+		assertEquals(4, metrics.getPushLag().getCount());
+		assertTrue(metrics.getPushLag().getMax() < 60000);
+		assertEquals(35.0 / Meter.TICK_SECONDS, metrics.getPushRates()[0], 0.001);
+		assertEquals(0, metrics.getDropRates()[0], 0.001);
+		assertEquals(metrics.getPushTime().getP99(), appender.getPushTimePercentiles()[2]);
+	}
+
+	@Test
+	public void testPriorityLanesAndShedding() {
+		appender.setQueueSize(100);
+		appender.setPriorityLanes(true);
+		appender.setPriorityQueueSize(10);
+		appender.setShedThreshold(50);
+		appender.setShedSampling(10);
+		start();
+		for (int i = 0; i < 300; i++) {
+			log(i % 3 == 0 ? Level.INFO : Level.DEBUG, 10);
+		}
+		for (int i = 0; i < 12; i++) {
+			log(Level.ERROR, 10);
+		}
+
+		// past 50 queued events, 1 DEBUG in 10 is kept: 151 of the last 167 are shed
+		assertEquals(151, appender.getEventsShed());
+		// the INFO events and the sampled DEBUG ones overflow the low lane
+		assertEquals(49, appender.getEventsDroppedInQueueingByLane()[1]);
+		// the errors have their own lane
+		assertEquals(2, appender.getEventsDroppedInQueueingByLane()[0]);
+		assertEquals(51, appender.getEventsDroppedInQueueing());
+
+		appender.run();
+		assertTrue(new String(pushed.get(0)[0], JsonBuffer.UTF_8).contains("\"level\":\"ERROR\""));
+	}
+
+	@Test
+	public void testRateLimitSummary() {
+		appender.setRateLimit(5);
+		appender.setSuppressedSummaryInterval(3600000);
+		start();
+		for (int i = 0; i < 20; i++) {
+			log(Level.ERROR, 10);
+		}
+		assertEquals(15, appender.getEventsRateLimited());
+		appender.run();
+		assertEquals(5, pushed.get(0).length);
+
+		// the summary is pushed on stop
+		appender.stop();
+		String summary = new String(pushed.get(1)[0], JsonBuffer.UTF_8);
+		assertTrue(summary, summary.contains("15 events suppressed by the rate limit of 5 per second on logger 'test'"));
+	}
+
+	@Test
+	public void testDuplicatesAreCollapsed() {
+		appender.setDedupWindow(3600000);
+		start();
+		for (int i = 0; i < 50; i++) {
+			log(Level.ERROR, 10);
+		}
+		log(Level.INFO, 20);
+		appender.run();
+		assertTrue(pushed.isEmpty());
+
+		// the window is released on stop
+		appender.stop();
+		assertEquals(2, pushed.get(0).length);
+		String repeated = new String(pushed.get(0)[0], JsonBuffer.UTF_8);
+		assertTrue(repeated, repeated.contains("\"repeatCount\":50"));
+		assertEquals(49, appender.getEventsCollapsed());
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		long previous = -1;
+		for (int index = 0; index < Histogram.BUCKETS; index++) {
+			long highest = Histogram.highestValue(index);
+			assertEquals(index, Histogram.index(previous + 1));
+			assertEquals(index, Histogram.index(highest));
+			previous = highest;
+		}
+		assertEquals(Long.MAX_VALUE, previous);
+	}
+
+	@Test
+	public void testPercentilesAreWithinThreePercent() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		MetricsSnapshot.Distribution distribution = histogram.snapshot();
+		assertEquals(10000, distribution.getCount());
+		assertEquals(5000.5, distribution.getMean(), 0.001);
+		assertWithin(5000, distribution.getP50());
+		assertWithin(9900, distribution.getP99());
+		assertWithin(10000, distribution.getMax());
+	}
+
+	@Test
+	public void testWindowRolls() {
+		Histogram histogram = new Histogram();
+		histogram.record(1000);
+		histogram.rotate();
+		histogram.record(10);
+		assertEquals(2, histogram.snapshot().getCount());
+		assertWithin(1000, histogram.snapshot().getMax());
+
+		histogram.rotate();
+		assertEquals(1, histogram.snapshot().getCount());
+		assertEquals(10, histogram.snapshot().getMax());
+		histogram.rotate();
+		assertEquals(0, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getP99());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual + " for " + expected, actual >= expected && actual <= expected * 1.03);
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+
+public class JSONEventLayoutTest {
+
+	private static final long TIMESTAMP = 1500000000005L;
+
+	private Logger logger;
+	private JSONEventLayout layout;
+
+	@Before
+	public void setUp() {
+		logger = new LoggerContext().getLogger("com.example.Test");
+
+		layout = new JSONEventLayout();
+		layout.setSource("app-@{user}");
+		layout.setSourceHost("host1");
+		layout.setType("@{missing}-@{other:-def}-@{empty:-}");
+		layout.setTags(Arrays.asList("t1", "@{user}"));
+		layout.setProperties(true);
+		AdditionalField field = new AdditionalField();
+		field.setKey("k/1");
+		field.setValue("v @{user} x");
+		layout.addAdditionalField(field);
+		layout.start();
+	}
+
+	private LoggingEvent newEvent(String message, Throwable t) {
+		LoggingEvent event = new LoggingEvent("x", logger, Level.WARN, message, t, new Object[] { "arg" });
+		event.setTimeStamp(TIMESTAMP);
+		event.setThreadName("main-1");
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("user", "bob\"s");
+		event.setMDCPropertyMap(mdc);
+		return event;
+	}
+
+	private String timestamp() {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ").format(new Date(TIMESTAMP));
+	}
+
+	@Test
+	public void testLayout() {
+		LoggingEvent event = newEvent("hello \"world\" / back\\slash\nnew\u0001 é€😀 {}", null);
+
+		String expected = "{\"source\":\"app-bob\\\"s\",\"host\":\"host1\",\"path\":null,"
+				+ "\"type\":\"missing_NOT_FOUND-def-\",\"tags\":[\"t1\",\"bob\\\"s\"],"
+				+ "\"message\":\"hello \\\"world\\\" \\/ back\\\\slash\\nnew\\u0001 é€😀 arg\","
+				+ "\"@timestamp\":\"" + timestamp() + "\",\"logger\":\"com.example.Test\",\"level\":\"WARN\","
+				+ "\"thread\":\"main-1\",\"properties\":{\"user\":\"bob\\\"s\"},\"k\\/1\":\"v bob\\\"s x\"}";
+
+		assertEquals(expected, layout.doLayout(event));
+		assertArrayEquals(expected.getBytes(JsonBuffer.UTF_8), layout.encode(event));
+	}
+
+	@Test
+	public void testMdcTemplates() {
+		layout.setSource("@{user");
+		layout.setSourceHost("a@{user:x}b@{@{user}}");
+		layout.setSourcePath("@{user:-}@{nope:-d}}@");
+		layout.setType(null);
+		layout.setTags(null);
+		layout.start();
+
+		String json = layout.doLayout(newEvent("m", null));
+		assertTrue(json, json.startsWith("{\"source\":\"@{user\",\"host\":\"a@{user:x}b@{user_NOT_FOUND}\","
+				+ "\"path\":\"bob\\\"sd}@\",\"type\":null,\"tags\":[],\"message\":\"m\","));
+	}
+
+	@Test
+	public void testThrowable() {
+		LoggingEvent event = newEvent("failed", new IllegalStateException("boom"));
+
+		String json = layout.doLayout(event);
+		assertTrue(json, json.contains(",\"throwable\":\"java.lang.IllegalStateException: boom\\n\\tat com.hardis.logback.JSONEventLayoutTest.testThrowable("));
+	}
+
+	private Exception nested(String message, int depth) {
+		if (depth == 0) {
+			return new IllegalArgumentException(message);
+		}
+		return new RuntimeException("level " + depth, nested(message, depth - 1));
+	}
+
+	private String expectedThrowable(Throwable t) {
+		JsonBuffer buf = new JsonBuffer();
+		buf.writeEscaped(ThrowableProxyUtil.asString(new ThrowableProxy(t)));
+		return ",\"throwable\":\"" + buf.toString() + "\"";
+	}
+
+	@Test
+	public void testThrowableMatchesLogback() {
+		for (int i = 0; i < 3; i++) {
+			// same stack, different messages: the second and third come from the cache
+			Exception e = nested("boom " + i, 3);
+			String json = layout.doLayout(newEvent("failed", e));
+			assertTrue(json, json.contains(expectedThrowable(e)));
+		}
+		Exception e = new Exception((String) null);
+		assertTrue(layout.doLayout(newEvent("failed", e)).contains(expectedThrowable(e)));
+	}
+
+	@Test
+	public void testThrowableCacheKeysOnFrames() {
+		// same classes and messages, thrown from two lines
+		Exception first = new IllegalStateException("boom", new IllegalArgumentException("cause"));
+		Exception second = new IllegalStateException("boom", new IllegalArgumentException("cause"));
+		for (int i = 0; i < 2; i++) {
+			assertTrue(layout.doLayout(newEvent("failed", first)).contains(expectedThrowable(first)));
+			assertTrue(layout.doLayout(newEvent("failed", second)).contains(expectedThrowable(second)));
+		}
+		// same frames, one more cause
+		Exception deeper = nested("boom", 3);
+		Exception shallower = nested("boom", 2);
+		assertTrue(layout.doLayout(newEvent("failed", deeper)).contains(expectedThrowable(deeper)));
+		assertTrue(layout.doLayout(newEvent("failed", shallower)).contains(expectedThrowable(shallower)));
+	}
+
+	@Test
+	public void testThrowableCacheSharedByThreads() throws Exception {
+		final Exception[] failures = { nested("a", 1), nested("b", 2), nested("c", 3), new IllegalStateException("d") };
+		final AtomicInteger wrong = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						Exception e = failures[i % failures.length];
+						if (!layout.doLayout(newEvent("failed", e)).contains(expectedThrowable(e))) {
+							wrong.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, wrong.get());
+	}
+
+	@Test
+	public void testThrowableLimits() {
+		layout.setMaxStackFrames(2);
+		layout.setMaxCauseDepth(1);
+		layout.setOmitCommonFrames(false);
+
+		Exception e = nested("boom", 3);
+		String json = layout.doLayout(newEvent("failed", e));
+		int frames = e.getStackTrace().length;
+		String expected = ",\"throwable\":\"java.lang.RuntimeException: level 3\\n"
+				+ "\\tat com.hardis.logback.JSONEventLayoutTest.nested(JSONEventLayoutTest.java:"
+				+ e.getStackTrace()[0].getLineNumber() + ")\\n"
+				+ "\\tat com.hardis.logback.JSONEventLayoutTest.testThrowableLimits(JSONEventLayoutTest.java:"
+				+ e.getStackTrace()[1].getLineNumber() + ")\\n"
+				+ "\\t... " + (frames - 2) + " frames truncated\\n"
+				+ "Caused by: java.lang.RuntimeException: level 2\\n";
+		assertTrue(json, json.contains(expected));
+		assertTrue(json, json.contains(" frames truncated\\n... 2 causes omitted\\n\""));
+	}
+
+	@Test
+	public void testWriteUtf8() {
+		String s = "plain \"quoted\"\n\u00e9t\u00e9 \u20ac \ud83d\ude00 \ud83d";
+		JsonBuffer buf = new JsonBuffer(4);
+		buf.writeUtf8(s);
+		assertArrayEquals(s.getBytes(JsonBuffer.UTF_8), buf.toByteArray());
+	}
+
+	@Test
+	public void testEscapedGrowsAsItWrites() {
+		StringBuilder plain = new StringBuilder();
+		StringBuilder escaped = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			plain.append(i % 100 == 0 ? '\n' : i % 100 == 1 ? '\u00e9' : 'a');
+			escaped.append(i % 100 == 0 ? "\\n" : i % 100 == 1 ? "\u00e9" : "a");
+		}
+		JsonBuffer buf = new JsonBuffer(4);
+		buf.writeEscaped(plain);
+		assertEquals(escaped.toString(), buf.toString());
+		// about one byte per char, not the worst case of 6
+		assertTrue(buf.array().length + " bytes", buf.array().length < 2 * buf.size());
+		assertTrue(buf.array().length + " bytes", buf.array().length < 64 * 1024);
+	}
+
+}
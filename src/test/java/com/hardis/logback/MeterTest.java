@@ -0,0 +1,52 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MeterTest {
+
+	@Test
+	public void testRatesDecay() {
+		Meter meter = new Meter();
+		meter.mark(500);
+		meter.tick();
+		assertEquals(500, meter.getCount());
+		assertEquals(100, meter.getRates()[0], 0.001);
+		assertEquals(100, meter.getRates()[2], 0.001);
+
+		// a minute without events
+		for (int i = 0; i < 12; i++) {
+			meter.tick();
+		}
+		double[] rates = meter.getRates();
+		assertEquals(100 / Math.E, rates[0], 0.001);
+		assertEquals(100 * Math.exp(-0.2), rates[1], 0.001);
+		assertEquals(100 * Math.exp(-1 / 15.0), rates[2], 0.001);
+	}
+
+	@Test
+	public void testConcurrentMarks() throws InterruptedException {
+		final Meter meter = new Meter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						meter.mark();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(800000, meter.getCount());
+		assertEquals(2, StripedCounter.stripes(1));
+		assertEquals(8, StripedCounter.stripes(4));
+		assertEquals(64, StripedCounter.stripes(96));
+	}
+
+}
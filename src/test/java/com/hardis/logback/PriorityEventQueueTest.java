@@ -0,0 +1,51 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PriorityEventQueueTest {
+
+	@Test
+	public void testWeightedPoll() {
+		PriorityEventQueue<String> queue = new PriorityEventQueue<String>(
+				new RingBufferEventQueue<String>(10), new RingBufferEventQueue<String>(10), 2);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.offer("h" + i, PriorityEventQueue.HIGH));
+			assertTrue(queue.offer("l" + i));
+		}
+		assertEquals(10, queue.size());
+		assertEquals(20, queue.capacity());
+
+		StringBuilder order = new StringBuilder();
+		String e;
+		while ((e = queue.poll()) != null) {
+			order.append(e).append(' ');
+		}
+		assertEquals("h0 h1 l0 h2 h3 l1 h4 l2 l3 l4 ", order.toString());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testLanesAreBoundedSeparately() {
+		PriorityEventQueue<String> queue = new PriorityEventQueue<String>(
+				new RingBufferEventQueue<String>(2), new RingBufferEventQueue<String>(3), 4);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer("low"));
+		}
+		assertFalse(queue.offer("low"));
+		assertTrue(queue.offer("high", PriorityEventQueue.HIGH));
+		assertTrue(queue.offer("high", PriorityEventQueue.HIGH));
+		assertFalse(queue.offer("high", PriorityEventQueue.HIGH));
+
+		assertEquals("high", queue.poll());
+		assertEquals("high", queue.poll());
+		assertEquals("low", queue.poll());
+		assertEquals(2, queue.lane(PriorityEventQueue.LOW).size());
+		assertNull(queue.lane(PriorityEventQueue.HIGH).poll());
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class RateLimiterTest {
+
+	private final LoggerContext context = new LoggerContext();
+
+	private LoggingEvent event(String logger, Level level, String message) {
+		return new LoggingEvent("x", context.getLogger(logger), level, message, null, new Object[] { 1 });
+	}
+
+	@Test
+	public void testLimitPerLogger() {
+		RateLimiter limiter = new RateLimiter(1, 3, false, 100, null);
+		int accepted = 0;
+		for (int i = 0; i < 10; i++) {
+			if (limiter.accept(event("hot", Level.ERROR, "retry {}")) == RateLimiter.ACCEPTED) accepted++;
+		}
+		assertEquals(3, accepted);
+		assertEquals(RateLimiter.ACCEPTED, limiter.accept(event("quiet", Level.INFO, "retry {}")));
+
+		List<RateLimiter.Suppressed> suppressed = limiter.suppressed();
+		assertEquals(1, suppressed.size());
+		assertEquals("hot", suppressed.get(0).key);
+		assertEquals(7, suppressed.get(0).count);
+		// reported once
+		assertEquals(0, limiter.suppressed().size());
+	}
+
+	@Test
+	public void testLimitPerTemplate() {
+		RateLimiter limiter = new RateLimiter(1, 1, true, 100, null);
+		assertEquals(RateLimiter.ACCEPTED, limiter.accept(event("a", Level.INFO, "retry {}")));
+		assertEquals(RateLimiter.LIMITED, limiter.accept(event("b", Level.INFO, "retry {}")));
+		assertEquals(RateLimiter.ACCEPTED, limiter.accept(event("b", Level.INFO, "done {}")));
+
+		List<RateLimiter.Suppressed> suppressed = limiter.suppressed();
+		assertEquals("retry {}", suppressed.get(0).key);
+		assertEquals("b", suppressed.get(0).loggerName);
+	}
+
+	@Test
+	public void testKeysAreBounded() {
+		RateLimiter limiter = new RateLimiter(1, 1, false, 160, null);
+		for (int i = 0; i < 10000; i++) {
+			limiter.accept(event("logger" + i, Level.INFO, "m"));
+			limiter.accept(event("logger" + i, Level.INFO, "m"));
+		}
+		assertEquals(160, limiter.size());
+		// the evicted loggers are still reported
+		int total = 0;
+		for (RateLimiter.Suppressed suppressed : limiter.suppressed()) {
+			total += suppressed.count;
+		}
+		assertEquals(10000, total);
+	}
+
+	@Test
+	public void testSampling() {
+		RateLimiter limiter = new RateLimiter(0, 0, false, 100, "DEBUG=0, INFO=0.5");
+		int info = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(RateLimiter.SAMPLED, limiter.accept(event("a", Level.DEBUG, "m")));
+			assertEquals(RateLimiter.ACCEPTED, limiter.accept(event("a", Level.WARN, "m")));
+			if (limiter.accept(event("a", Level.INFO, "m")) == RateLimiter.ACCEPTED) info++;
+		}
+		assertEquals(5000, info, 500);
+		assertEquals(0, limiter.size());
+
+		try {
+			new RateLimiter(0, 0, false, 100, "VERBOSE=0.5");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import org.junit.Test;
+
+import redis.clients.util.SafeEncoder;
+
+public class RespWriterTest {
+
+	private static byte[][] command(String... args) {
+		byte[][] command = new byte[args.length][];
+		for (int i = 0; i < args.length; i++) {
+			command[i] = SafeEncoder.encode(args[i]);
+		}
+		return command;
+	}
+
+	@Test
+	public void testFrames() throws Exception {
+		RespWriter writer = new RespWriter(1024, 4);
+		Channel channel = new Channel(Integer.MAX_VALUE);
+		assertTrue(writer.isEmpty());
+		writer.command(command("RPUSH", "logs", "0123456789"));
+		writer.command(command("PING"));
+		assertFalse(writer.isEmpty());
+		assertTrue(writer.writeTo(channel));
+		assertTrue(writer.isEmpty());
+		assertEquals("*3\r\n$5\r\nRPUSH\r\n$4\r\nlogs\r\n$10\r\n0123456789\r\n*1\r\n$4\r\nPING\r\n", channel.written());
+		assertEquals(1, writer.pooled());
+	}
+
+	@Test
+	public void testFramesSpanChunksAndPartialWrites() throws Exception {
+		StringBuilder event = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			event.append(i % 10);
+		}
+		// 16 byte chunks, the channel taking 50 bytes per write
+		RespWriter writer = new RespWriter(16, 2);
+		Channel channel = new Channel(50);
+		writer.command(command("RPUSH", "logs", event.toString(), event.toString()));
+		int writes = 1;
+		while (!writer.writeTo(channel)) {
+			writes++;
+		}
+		assertEquals("*4\r\n$5\r\nRPUSH\r\n$4\r\nlogs\r\n$100\r\n" + event + "\r\n$100\r\n" + event + "\r\n", channel.written());
+		assertEquals(5, writes);
+		assertEquals(2, writer.pooled());
+
+		// the pooled chunks are reused
+		writer.command(command("PING"));
+		assertEquals(1, writer.pooled());
+		writer.clear();
+		assertTrue(writer.isEmpty());
+		assertEquals(2, writer.pooled());
+	}
+
+	/**
+	 * Records the bytes written, taking at most <code>max</code> per write.
+	 */
+	private static final class Channel implements GatheringByteChannel {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final int max;
+
+		Channel(int max) {
+			this.max = max;
+		}
+
+		String written() {
+			return SafeEncoder.encode(bytes.toByteArray());
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long written = 0;
+			for (int i = offset; i < offset + length && written < max; i++) {
+				while (srcs[i].hasRemaining() && written < max) {
+					bytes.write(srcs[i].get());
+					written++;
+				}
+			}
+			return written;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[] { src });
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
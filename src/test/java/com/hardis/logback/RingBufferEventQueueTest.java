@@ -0,0 +1,86 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RingBufferEventQueueTest {
+
+	@Test
+	public void testCapacityIsNotRoundedUp() {
+		EventQueue<Integer> queue = new RingBufferEventQueue<Integer>(5);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(5));
+		assertEquals(5, queue.size());
+
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(5));
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 8;
+		final int perProducer = 20000;
+		final EventQueue<Integer> queue = new RingBufferEventQueue<Integer>(1000);
+		final AtomicInteger dropped = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread t = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						if (!queue.offer(producer * perProducer + i)) {
+							dropped.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		int[] last = new int[producers];
+		Arrays.fill(last, -1);
+		int received = 0;
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread t : threads) {
+				running |= t.isAlive();
+			}
+			Integer e;
+			while ((e = queue.poll()) != null) {
+				int producer = e / perProducer;
+				int seq = e % perProducer;
+				// each producer's events come out in order
+				assertTrue(seq > last[producer]);
+				last[producer] = seq;
+				received++;
+			}
+		}
+		Integer e;
+		while ((e = queue.poll()) != null) {
+			received++;
+		}
+
+		assertEquals(producers * perProducer, received + dropped.get());
+		assertTrue(queue.isEmpty());
+	}
+
+}
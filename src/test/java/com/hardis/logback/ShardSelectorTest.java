@@ -0,0 +1,75 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+public class ShardSelectorTest {
+
+	private final LoggerContext context = new LoggerContext();
+
+	private LoggingEvent newEvent(String loggerName, String user) {
+		LoggingEvent event = new LoggingEvent("x", context.getLogger(loggerName), Level.INFO, "message", null, null);
+		event.setMDCPropertyMap(user == null ? Collections.<String, String> emptyMap() : Collections.singletonMap("user", user));
+		return event;
+	}
+
+	@Test
+	public void testRoundRobin() {
+		ShardSelector selector = new ShardSelector.RoundRobin();
+		LoggingEvent event = newEvent("a", null);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i % 4, selector.select(event, 4));
+		}
+	}
+
+	@Test
+	public void testByLoggerAndMdc() {
+		ShardSelector byLogger = new ShardSelector.ByLogger();
+		ShardSelector byMdc = new ShardSelector.ByMdc("user");
+		Set<Integer> loggerShards = new HashSet<Integer>();
+		Set<Integer> userShards = new HashSet<Integer>();
+		for (int i = 0; i < 100; i++) {
+			int shard = byLogger.select(newEvent("logger" + i, null), 4);
+			assertEquals(shard, byLogger.select(newEvent("logger" + i, "other"), 4));
+			loggerShards.add(shard);
+
+			shard = byMdc.select(newEvent("a", "user" + i), 4);
+			assertEquals(shard, byMdc.select(newEvent("b", "user" + i), 4));
+			userShards.add(shard);
+		}
+		assertEquals(4, loggerShards.size());
+		assertEquals(4, userShards.size());
+
+		// events without the key are spread in turn
+		int first = byMdc.select(newEvent("a", null), 3);
+		assertEquals((first + 1) % 3, byMdc.select(newEvent("a", null), 3));
+	}
+
+	@Test
+	public void testShardKeys() {
+		byte[][] keys = RedisAppender.shardKeys("logs", 1);
+		assertEquals("logs", SafeEncoder.encode(keys[0]));
+
+		keys = RedisAppender.shardKeys("logs", 16);
+		Set<Integer> slots = new HashSet<Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals("logs:{" + i + "}", SafeEncoder.encode(keys[i]));
+			slots.add(JedisClusterCRC16.getSlot(keys[i]));
+		}
+		assertEquals(16, slots.size());
+		assertTrue(slots.contains(JedisClusterCRC16.getSlot("0")));
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class SharedFlushEngineTest {
+
+	private final AsyncRedisClientTest.Server server;
+	private final LoggerContext context = new LoggerContext();
+
+	public SharedFlushEngineTest() throws IOException {
+		server = new AsyncRedisClientTest.Server();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		context.stop();
+		server.close();
+	}
+
+	private RedisAppender appender(String key) {
+		RedisAppender appender = new RedisAppender();
+		appender.setContext(context);
+		appender.setHost("127.0.0.1");
+		appender.setPort(server.getPort());
+		appender.setKey(key);
+		appender.setSharedEngine(true);
+		appender.setRegisterMBean(false);
+		appender.setAlwaysBatch(false);
+		appender.setFlushInterval(3600000);
+		appender.activateOptions();
+		return appender;
+	}
+
+	private void log(RedisAppender appender, int count) {
+		for (int i = 0; i < count; i++) {
+			appender.append(new LoggingEvent("x", context.getLogger("test"), Level.INFO, "message " + i, null, null));
+		}
+	}
+
+	@Test
+	public void testAppendersShareOneConnection() {
+		RedisAppender a = appender("a");
+		RedisAppender b = appender("b");
+		log(a, 30);
+		log(b, 20);
+		// one cycle pushes for both
+		a.run();
+		assertEquals(50, server.elements.get());
+		assertEquals(30, a.getEventsPushed());
+		assertEquals(20, b.getEventsPushed());
+		assertEquals(1, b.getMetrics().getBatchSize().getCount());
+		assertEquals(1, server.connections.get());
+
+		// a stopped appender pushes what is left and leaves the engine
+		log(a, 5);
+		a.stop();
+		assertEquals(55, server.elements.get());
+		log(b, 5);
+		b.run();
+		assertEquals(60, server.elements.get());
+		assertEquals(35, a.getEventsPushed());
+	}
+
+	@Test
+	public void testBrokenConnectionKeepsEachBatchOnce() {
+		RedisAppender a = appender("a");
+		RedisAppender b = appender("b");
+		log(a, 30);
+		log(b, 20);
+		// Redis goes away after the batch of a
+		server.closeAt.set(2);
+		a.run();
+		assertEquals(0, a.getEventsPushed() + b.getEventsPushed());
+		a.run();
+		assertEquals(30, a.getEventsPushed());
+		assertEquals(20, b.getEventsPushed());
+		// the batch of a landed twice, the connection having broken before its reply
+		assertEquals(80, server.elements.get());
+		assertEquals(2, server.connections.get());
+	}
+
+	@Test
+	public void testContextResetStopsTheEngine() {
+		RedisAppender a = appender("a");
+		RedisAppender b = appender("b");
+		SharedFlushEngine engine = SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), null, false);
+		log(a, 5);
+		log(b, 5);
+		context.reset();
+		// the engine pushed what its appenders held
+		assertEquals(10, server.elements.get());
+
+		RedisAppender c = appender("c");
+		assertNotSame(engine, SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), null, false));
+		log(c, 3);
+		c.run();
+		assertEquals(13, server.elements.get());
+		assertEquals(2, server.connections.get());
+	}
+
+	@Test
+	public void testStoppedEngineStartsAgain() {
+		RedisAppender a = appender("a");
+		SharedFlushEngine engine = SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), null, false);
+		log(a, 5);
+		engine.stop();
+		assertEquals(5, server.elements.get());
+		assertFalse(engine.isStarted());
+
+		RedisAppender b = appender("b");
+		assertSame(engine, SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), null, false));
+		assertTrue(engine.isStarted());
+		log(b, 3);
+		b.run();
+		assertEquals(8, server.elements.get());
+	}
+
+	@Test
+	public void testEngineRejectsAnotherPassword() {
+		appender("a");
+		try {
+			SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), "secret", false);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("same password"));
+		}
+		try {
+			SharedFlushEngine.get(context, "127.0.0.1", server.getPort(), null, true);
+			fail();
+		} catch (IllegalStateException e) {
+			// another SSL setting
+		}
+	}
+
+	@Test
+	public void testEachAppenderRegistersItsMBean() throws Exception {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName[] names = new ObjectName[2];
+		RedisAppender[] appenders = new RedisAppender[2];
+		for (int i = 0; i < appenders.length; i++) {
+			appenders[i] = new RedisAppender();
+			appenders[i].setContext(context);
+			appenders[i].setName("shared-" + i);
+			appenders[i].setHost("127.0.0.1");
+			appenders[i].setPort(server.getPort());
+			appenders[i].setKey("logs");
+			appenders[i].setSharedEngine(true);
+			appenders[i].activateOptions();
+			names[i] = new ObjectName("com.hardis.logback:type=RedisAppender,name=\"shared-" + i + "\"");
+			assertTrue(mbs.isRegistered(names[i]));
+		}
+		appenders[0].stop();
+		assertFalse(mbs.isRegistered(names[0]));
+		assertTrue(mbs.isRegistered(names[1]));
+		appenders[1].stop();
+		assertFalse(mbs.isRegistered(names[1]));
+
+		// a single appender not sharing an engine keeps the plain name
+		RedisAppender alone = new RedisAppender();
+		alone.setContext(context);
+		alone.setName("alone");
+		alone.setKey("logs");
+		alone.activateOptions();
+		ObjectName plain = new ObjectName("com.hardis.logback:type=RedisAppender");
+		assertTrue(mbs.isRegistered(plain));
+		alone.stop();
+		assertFalse(mbs.isRegistered(plain));
+	}
+
+	@Test
+	public void testResetPushesWhatAppendersLogWhileStopping() {
+		Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+		for (String key : new String[] { "a", "b" }) {
+			RedisAppender appender = new RedisAppender();
+			appender.setContext(context);
+			appender.setHost("127.0.0.1");
+			appender.setPort(server.getPort());
+			appender.setKey(key);
+			appender.setSharedEngine(true);
+			appender.setRegisterMBean(false);
+			appender.setFlushInterval(3600000);
+			// the summary of the suppressed events is queued by stop()
+			appender.setRateLimit(1);
+			appender.setRateLimitBurst(1);
+			appender.start();
+			root.addAppender(appender);
+		}
+		for (int i = 0; i < 5; i++) {
+			root.info("message " + i);
+		}
+		// stops the engine, then the appenders
+		context.reset();
+		// one event and one summary per appender
+		assertEquals(4, server.elements.get());
+	}
+
+}
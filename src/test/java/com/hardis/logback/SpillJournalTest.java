@@ -0,0 +1,125 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.util.SafeEncoder;
+
+public class SpillJournalTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("spill", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static byte[][] batch(String... events) {
+		byte[][] batch = new byte[events.length][];
+		for (int i = 0; i < events.length; i++) {
+			batch[i] = SafeEncoder.encode(events[i]);
+		}
+		return batch;
+	}
+
+	private static void assertBatch(SpillJournal.Batch batch, int shard, String... events) {
+		assertEquals(shard, batch.shard);
+		assertEquals(events.length, batch.events.length);
+		for (int i = 0; i < events.length; i++) {
+			assertEquals(events[i], SafeEncoder.encode(batch.events[i]));
+		}
+	}
+
+	@Test
+	public void testReplayInOrderAcrossSegments() throws IOException {
+		// room for two of these batches per segment
+		SpillJournal journal = new SpillJournal(directory, 64, 1024, -1);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(journal.append(i, batch("event" + i, "{}")));
+		}
+		assertEquals(3, journal.getSegmentCount());
+		assertEquals(10, journal.getEventsPending());
+
+		for (int i = 0; i < 5; i++) {
+			assertBatch(journal.peek(), i, "event" + i, "{}");
+			journal.advance();
+		}
+		assertNull(journal.peek());
+		assertEquals(1, journal.getSegmentCount());
+		assertEquals(1, directory.listFiles().length);
+		assertEquals(10, journal.getEventsReplayed());
+		assertEquals(0, journal.getEventsPending());
+	}
+
+	@Test
+	public void testReopenResumesReplay() throws IOException {
+		SpillJournal journal = new SpillJournal(directory, 4096, 1024 * 1024, 0);
+		assertTrue(journal.append(0, batch("a")));
+		assertTrue(journal.append(1, batch("b", "c")));
+		assertBatch(journal.peek(), 0, "a");
+		journal.advance();
+		journal.close();
+
+		journal = new SpillJournal(directory, 4096, 1024 * 1024, 0);
+		assertEquals(2, journal.getEventsPending());
+		assertTrue(journal.append(2, batch("d")));
+		assertBatch(journal.peek(), 1, "b", "c");
+		journal.advance();
+		assertBatch(journal.peek(), 2, "d");
+		journal.advance();
+		assertNull(journal.peek());
+	}
+
+	@Test
+	public void testSyncOutsideAppend() throws IOException {
+		SpillJournal journal = new SpillJournal(directory, 4096, 1024 * 1024, 0);
+		assertTrue(journal.append(0, batch("a")));
+		// written out in full, not sparse
+		assertEquals(4096, directory.listFiles()[0].length());
+		journal.sync();
+		journal.sync();
+		assertBatch(journal.peek(), 0, "a");
+	}
+
+	@Test
+	public void testSizeCaps() throws IOException {
+		SpillJournal journal = new SpillJournal(directory, 64, 128, -1);
+		// larger than a segment
+		assertFalse(journal.append(0, batch("0123456789012345678901234567890123456789012345678901234567890")));
+		int accepted = 0;
+		while (journal.append(0, batch("event", "{}"))) {
+			accepted++;
+		}
+		assertEquals(4, accepted);
+		assertEquals(2, journal.getSegmentCount());
+
+		journal.peek();
+		journal.advance();
+		journal.peek();
+		journal.advance();
+		// the first segment is gone, making room for another
+		assertTrue(journal.append(0, batch("event", "{}")));
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeNoException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+public class StreamSinkTest {
+
+	private List<String> split(String json) {
+		List<byte[]> fields = StreamSink.splitFields(json.getBytes(JsonBuffer.UTF_8));
+		if (fields == null) {
+			return null;
+		}
+		List<String> result = new ArrayList<String>();
+		for (byte[] field : fields) {
+			result.add(new String(field, JsonBuffer.UTF_8));
+		}
+		return result;
+	}
+
+	@Test
+	public void testSplitFields() {
+		List<String> fields = split("{\"message\":\"a \\\"b\\\" \\/ \\n \\u00e9\\ud83d\\ude00\",\"path\":null,"
+				+ " \"tags\" : [\"x\",\"y,}\"] , \"location\":{\"line\":\"12\"},\"n\":42}");
+
+		assertEquals(10, fields.size());
+		assertEquals("message", fields.get(0));
+		assertEquals("a \"b\" / \n é😀", fields.get(1));
+		assertEquals("path", fields.get(2));
+		assertEquals("null", fields.get(3));
+		assertEquals("tags", fields.get(4));
+		assertEquals("[\"x\",\"y,}\"]", fields.get(5));
+		assertEquals("location", fields.get(6));
+		assertEquals("{\"line\":\"12\"}", fields.get(7));
+		assertEquals("n", fields.get(8));
+		assertEquals("42", fields.get(9));
+	}
+
+	@Test
+	public void testNotAnObject() {
+		assertNull(split("plain text"));
+		assertNull(split("{\"truncated\":\"val"));
+		assertEquals(0, split("{ }").size());
+	}
+
+	/**
+	 * Runs the script against the Redis at <code>-Dredis.host</code> and
+	 * <code>-Dredis.port</code>, localhost:6379 by default, and is skipped if there's none.
+	 */
+	@Test
+	public void testAgainstRedis() {
+		Jedis jedis = new Jedis(System.getProperty("redis.host", "localhost"), Integer.getInteger("redis.port", 6379));
+		try {
+			try {
+				jedis.ping();
+			} catch (Exception e) {
+				assumeNoException("No Redis to test against", e);
+			}
+			byte[] key = SafeEncoder.encode("StreamSinkTest:" + System.nanoTime());
+			byte[][] events = { SafeEncoder.encode("{\"message\":\"first\",\"n\":1}"), SafeEncoder.encode("second") };
+			try {
+				new StreamSink("event", true, 3, false).push(jedis, key, events);
+				Pipeline pipeline = jedis.pipelined();
+				new StreamSink("event", true, 3, false).push(pipeline, key, events);
+				pipeline.sync();
+				// trimmed exactly to the last 3 entries
+				assertEquals(3L, jedis.eval("return redis.call('XLEN', KEYS[1])", Arrays.asList(SafeEncoder.encode(key)), new ArrayList<String>()));
+				assertEquals(Arrays.asList("message", "first", "n", "1", "event", "second"), jedis.eval(
+						"local entries = redis.call('XRANGE', KEYS[1], '-', '+')\n"
+								+ "local fields = {}\n"
+								+ "for i = 2, 3 do for _, v in ipairs(entries[i][2]) do fields[#fields + 1] = v end end\n"
+								+ "return fields",
+						Arrays.asList(SafeEncoder.encode(key)), new ArrayList<String>()));
+			} finally {
+				jedis.del(key);
+			}
+		} finally {
+			jedis.close();
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.hardis.logback;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TimestampFormatterTest {
+
+	private static final long[] TIMESTAMPS = { 0L, 5L, 50L, 500L, 999L, 1000L, -1L, -999L, -1000L, -1001L,
+			1500000000005L, 1500000000050L, 1500000000999L, 1500000001000L, 1711846799999L, 1711846800000L };
+
+	private String format(TimestampFormatter formatter, long timestamp) {
+		JsonBuffer buf = new JsonBuffer();
+		formatter.writeTo(buf, timestamp);
+		return buf.toString();
+	}
+
+	@Test
+	public void testLegacyMatchesSimpleDateFormat() {
+		TimestampFormatter formatter = new TimestampFormatter(TimestampFormatter.LEGACY);
+		SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SZ");
+		for (long t : TIMESTAMPS) {
+			assertEquals("\"" + expected.format(new Date(t)) + "\"", format(formatter, t));
+		}
+		// every millisecond of a second, through the cache
+		for (long t = 1500000000000L; t < 1500000002000L; t++) {
+			assertEquals("\"" + expected.format(new Date(t)) + "\"", format(formatter, t));
+		}
+	}
+
+	@Test
+	public void testIso8601() {
+		TimestampFormatter formatter = new TimestampFormatter(TimestampFormatter.ISO8601);
+		SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		expected.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for (long t : TIMESTAMPS) {
+			assertEquals("\"" + expected.format(new Date(t)) + "\"", format(formatter, t));
+		}
+		assertEquals("\"2017-07-14T02:40:00.005Z\"", format(formatter, 1500000000005L));
+	}
+
+	@Test
+	public void testEpochMillis() {
+		TimestampFormatter formatter = new TimestampFormatter(TimestampFormatter.EPOCH_MILLIS);
+		for (long t : TIMESTAMPS) {
+			assertEquals(Long.toString(t), format(formatter, t));
+		}
+	}
+
+}